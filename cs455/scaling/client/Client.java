@@ -11,6 +11,14 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import cs455.scaling.util.*;
 
@@ -35,7 +43,8 @@ import cs455.scaling.util.*;
  * 		Client is expected to send messages at rate specified during start-up. Client sends a byte[] to the server
  * 		Size of this array is 8KB and contents are randomly generated
  * 		Client generates a new byte array for every transmission and tracks the hash codes associated with transmitted data
- * 		Hashes generated with SHA-1 algorithm (cs44.scaling.util.SHA1.java)
+ * 		Hashes generated with SHA-1 algorithm (cs44.scaling.util.SHA1.java), or the DigestAlgorithm given on the command line,
+ * 			which each connection asks the server for with a handshake before its first packet
  * 		Client maintains hash codes in a linked list
  * 		For every data packet that is published, client adds corresponding hash code to tail of linked list
  * 		Upon receiving data, server computes hash code and sends back to client
@@ -54,35 +63,94 @@ public class Client implements Runnable {
 	private Selector selector;
 
 	// The buffer to read data when available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(40);
+	private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
 
-	// A list of PendingChange instances
-	private List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
-
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
+	// Changes requested by other threads, applied by the selecting thread before it selects
+	private Queue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<ChangeRequest>();
+	
+	// set once the selector has been woken, so other requests in the same cycle can skip the syscall
+	private AtomicBoolean wakeupPending = new AtomicBoolean(false);
 	
-	// Maps a SocketChannel to a TransmissionHandler
-	private Map<SocketChannel, TransmissionHandler> transmissionHandlers = Collections.synchronizedMap(new HashMap<SocketChannel, TransmissionHandler>());
+	// Pool of buffers for packets waiting to be written
+	private BufferPool bufferPool = new BufferPool(64);
+	
+	// Long-lived connections to the server, packets are spread over them round robin
+	private ServerConnection[] connections;
+	private int nextConnection = 0;
 	
 	private int messageRate;
 	private String hostName;
-	private Queue<String> sentData = new LinkedList<String>();
+	
+	// what the server is asked to answer packets with
+	private DigestAlgorithm digestAlgorithm;
 
+	// only touched by the scheduler thread
 	private int messageCount;
 	
+	// sends packets at messageRate
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	
+	// permits for packets in flight (sent, response not yet received)
+	private Semaphore window;
+	
+	private AtomicInteger receivedCount = new AtomicInteger();
+	private AtomicInteger mismatchCount = new AtomicInteger();
+	private AtomicInteger failedCount = new AtomicInteger();
+	private AtomicInteger skippedCount = new AtomicInteger();
+	
+	// size of the random payload in each packet (8KB, per the spec)
+	public static final int PAYLOAD_SIZE = 8*1024;
+	
+	public static final int DEFAULT_WINDOW_SIZE = 16;
+	
 	/**
-	 * Creates a new client
+	 * Creates a new client with a single connection to the server
 	 * @param hostAddress
 	 * @param port
 	 * @param messagerate
 	 * @throws IOException
 	 */
 	public Client(InetAddress hostAddress, int port, int messagerate) throws IOException {
+		this(hostAddress, port, messagerate, 1, DEFAULT_WINDOW_SIZE);
+	}
+	
+	/**
+	 * Creates a new client
+	 * @param hostAddress
+	 * @param port
+	 * @param messagerate
+	 * @param connectionCount - number of connections to open to the server
+	 * @param windowSize - most packets allowed in flight at once
+	 * @throws IOException
+	 */
+	public Client(InetAddress hostAddress, int port, int messagerate, int connectionCount, int windowSize) throws IOException {
+		this(hostAddress, port, messagerate, connectionCount, windowSize, DigestAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Creates a new client
+	 * @param hostAddress
+	 * @param port
+	 * @param messagerate
+	 * @param connectionCount - number of connections to open to the server
+	 * @param windowSize - most packets allowed in flight at once
+	 * @param digestAlgorithm - what the server is asked to answer packets with
+	 * @throws IOException
+	 */
+	public Client(InetAddress hostAddress, int port, int messagerate, int connectionCount, int windowSize,
+			DigestAlgorithm digestAlgorithm) throws IOException {
 		this.hostAddress = hostAddress;
+		this.digestAlgorithm = digestAlgorithm;
+		this.window = new Semaphore(windowSize);
 		this.port = port;
 		this.selector = this.initSelector();
 		
+		// Open the connections once, they are reused for every packet
+		connections = new ServerConnection[connectionCount];
+		for (int i = 0; i < connectionCount; i++) {
+			connections[i] = this.initiateConnection();
+		}
+		
 		hostName = "";
 		try {
 			hostName = InetAddress.getLocalHost().getHostName();
@@ -96,84 +164,175 @@ public class Client implements Runnable {
 
 	/**
 	 * Prints information about sent/received messages
-	 * @param messageNumber
-	 * @param response - String received from server
+	 * @param handler - the message's handler (holds the hash that was sent)
+	 * @param response - digest received from server
 	 */
-	private void printMessageInfo(int messageNumber, String response){
-		String sentHash = sentData.remove();
+	private void printMessageInfo(TransmissionHandler handler, byte[] response){
+		int messageNumber = handler.getMessageNumber();
+		String sentHash = SHA1.toHex(handler.getSentHash());
 		System.out.println();
-		System.out.println("[Msg-" + messageCount+ "] Sent: " + sentHash);
-		System.out.println("[Msg-" + messageCount+ "] Received: " + response);
-		if(sentHash.equals(response)){
+		System.out.println("[Msg-" + messageNumber+ "] Sent: " + sentHash);
+		System.out.println("[Msg-" + messageNumber+ "] Received: " + (handler.isMatch() ? sentHash : SHA1.toHex(response)));
+		if(handler.isMatch()){
 			System.out.println("[ClientStatus] Message " + messageNumber + " transmitted correctly");
 		}
-		else System.out.println("[ClientStatus] Message " + messageNumber + " transmitted incorrectly");
+		else {
+			mismatchCount.incrementAndGet();
+			System.out.println("[ClientStatus] Message " + messageNumber + " transmitted incorrectly");
+		}
 		
 	}
 	
 	/**
-	 * Sends data to the server at messageRate
+	 * Start sending data to the server at messageRate
 	 */
-	private void sendData(){
-		TransmissionHandler handler = new TransmissionHandler();
-		//generate random data
-		messageCount++;
-		byte[] data = RandomData.generateData(8);
-		String hashedData = SHA1.SHA1FromBytes(data);
-		//append to tail of linkedlist
-		sentData.offer(hashedData);
-		
-		
-
+	public void start(){
+		long period = 1000000000L / messageRate;
+		scheduler.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				try {
+					sendData();
+				} catch (Exception e) {
+					// don't let one failure cancel the schedule
+					e.printStackTrace();
+				}
+			}
+		}, 0, period, TimeUnit.NANOSECONDS);
 		
-		try {
-			send(data, handler);
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		// print totals when the client is shut down
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			public void run(){
+				printSummary();
+			}
+		}));
+	}
+	
+	/**
+	 * Sends one packet to the server, unless the send window is full. Does not wait for the response
+	 */
+	private void sendData(){
+		if(!window.tryAcquire()){
+			// too many packets waiting for responses, skip this one
+			skippedCount.incrementAndGet();
+			return;
 		}
-		String response = handler.waitForResponse();
 		
-		printMessageInfo(messageCount, response);
-		response = "";
+		//generate random data
+		messageCount++;
+		byte[] hashedData = new byte[digestAlgorithm.getLength()];
+		PooledBuffer packet = createPacket(bufferPool, PAYLOAD_SIZE, digestAlgorithm.getDigest(), hashedData);
 		
+		final TransmissionHandler handler = new TransmissionHandler(messageCount, hashedData);
+		handler.getResponse().whenComplete(new BiConsumer<byte[], Throwable>(){
+			public void accept(byte[] response, Throwable failure){
+				window.release();
+				if(failure != null){
+					failedCount.incrementAndGet();
+					System.out.println("[ClientStatus] Message " + handler.getMessageNumber() + " failed: " + failure.getMessage());
+				}
+				else{
+					receivedCount.incrementAndGet();
+					printMessageInfo(handler, response);
+				}
+			}
+		});
 		
-		//sleep till it's time to send more data
 		try {
-			Thread.sleep(1000/messageRate);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			send(packet, handler);
+		} catch (IOException e) {
+			handler.connectionClosed(e);
 		}
-		sendData();
+	}
+	
+	/**
+	 * Frame a packet of random data
+	 * @param pool - where to borrow the packet's buffer from
+	 * @param payloadSize
+	 * @param digest - what the payload is hashed with
+	 * @param hash - receives the digest of the payload
+	 * @return the packet, flipped and ready to send
+	 */
+	public static PooledBuffer createPacket(BufferPool pool, int payloadSize, Digest digest, byte[] hash){
+		PooledBuffer packet = Frame.acquire(pool, payloadSize);
+		ByteBuffer data = packet.getBuffer();
+		RandomData.fill(data);
+		data.flip();
+		data.position(Frame.HEADER_SIZE);
+		digest.digest(data, hash, 0);
+		data.rewind();
+		return packet;
+	}
+	
+	/**
+	 * Prints totals for the packets sent by this client
+	 */
+	private void printSummary(){
+		System.out.println();
+		System.out.println("[ClientStatus] Sent: " + messageCount + " Received: " + receivedCount.get() +
+				" Mismatched: " + mismatchCount.get() + " Failed: " + failedCount.get() +
+				" Skipped (window full): " + skippedCount.get());
 	}
 	
 	
 	/**
 	 * Send data to server
-	 * @param data - random data to send
+	 * @param packet - framed random data to send; released once it has been written
 	 * @param handler - ResponseHandler (waits for server response)
 	 * @throws IOException
 	 */
-	public void send(byte[] data, TransmissionHandler handler) throws IOException {
-		// Start a new connection
-		SocketChannel socket = this.initiateConnection();
+	public void send(PooledBuffer packet, TransmissionHandler handler) throws IOException {
+		// Pick the next of the open connections
+		ServerConnection connection;
+		synchronized (this.connections) {
+			connection = this.connections[nextConnection];
+			nextConnection = (nextConnection + 1) % this.connections.length;
+		}
+		send(connection, packet, handler);
+	}
+	
+	/**
+	 * Send data to server on one of this client's connections
+	 * @param connection - one of getConnections()
+	 * @param packet - framed data to send; released once it has been written
+	 * @param handler - ResponseHandler (waits for server response)
+	 * @throws IOException
+	 */
+	public void send(ServerConnection connection, PooledBuffer packet, TransmissionHandler handler) throws IOException {
+		SocketChannel socket = connection.getSocketChannel();
+		if (!socket.isOpen()) {
+			packet.release();
+			throw new IOException("Connection to server is closed");
+		}
 
-		// Register the response handler
-		this.transmissionHandlers.put(socket, handler);
+		// Register the response handler (responses come back in the order packets were sent);
+		// if the connection closed since the check above, the handler has already been failed
+		if (!connection.expectResponse(handler)) {
+			packet.release();
+			throw new IOException("Connection to server is closed");
+		}
 		
-		// queue the data to be written
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socket);
-			if (queue == null) {
-				queue = new ArrayList<ByteBuffer>();
-				this.pendingData.put(socket, queue);
-			}
-			queue.add(ByteBuffer.wrap(data));
+		// queue the data to be written, and ask the selecting thread to write it
+		// unless a write is already scheduled (or the connection isn't established yet)
+		if (connection.enqueue(packet)) {
+			pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+			wakeup();
+		}
+	}
+	
+	/**
+	 * @return the connections this client opened to the server
+	 */
+	public ServerConnection[] getConnections() {
+		return connections;
+	}
+	
+	/**
+	 * wake up selecting thread so it can make required changes
+	 */
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			this.selector.wakeup();
 		}
-
-		// wake up selecting thread so it can make required changes
-		this.selector.wakeup();
 	}
 
 	/**
@@ -194,66 +353,42 @@ public class Client implements Runnable {
 		} catch (IOException e) {
 			// The remote forcibly closed the connection, cancel
 			// the selection key and close the channel.
+			System.out.println("Connection to server lost: " + e.getMessage());
 			key.cancel();
 			socketChannel.close();
+			((ServerConnection) key.attachment()).closed(e);
 			return;
 		}
 
 		if (numRead == -1) {
 			// Remote server entity shut the socket down cleanly. Do the
 			// same from client end and cancel the channel.
+			System.out.println("Connection to server closed");
 			key.channel().close();
 			key.cancel();
+			((ServerConnection) key.attachment()).closed(new IOException("Connection to server closed"));
 			return;
 		}
 
-		
-		handleResponse(socketChannel, readBuffer.array(), numRead);
-	}
-
-	private void handleResponse(SocketChannel socketChannel, byte[] data, int numRead) throws IOException {
-		// Make a correctly sized copy of the data before handing it
-		// to the client
-		byte[] rspData = new byte[numRead];
-		System.arraycopy(data, 0, rspData, 0, numRead);
-		
-		// Look up the handler for this channel
-		TransmissionHandler handler = (TransmissionHandler) transmissionHandlers.get(socketChannel);
-		
-		// And pass the response to it
-		if (handler.handleResponse(rspData)) {
-			// The handler has seen enough, close the connection
-			socketChannel.close();
-			socketChannel.keyFor(selector).cancel();
-		}
+		// Pass each complete response to the handler waiting for it
+		this.readBuffer.flip();
+		ServerConnection connection = (ServerConnection) key.attachment();
+		connection.handleResponses(this.readBuffer);
 	}
 
 	private void write(SelectionKey key) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ServerConnection connection = (ServerConnection) key.attachment();
 
-		synchronized (pendingData) {
-			List<ByteBuffer> queue =  pendingData.get(socketChannel);
-
-			// Write until there's not more data ...
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// ... or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
-			}
-
-			if (queue.isEmpty()) {
-				// No more data to write so switch back to reading
-				key.interestOps(SelectionKey.OP_READ);
-			}
+		// Write until there's not more data or the socket's buffer fills up
+		if (connection.flush() && !connection.writeDone()) {
+			// No more data to write so switch back to reading
+			key.interestOps(SelectionKey.OP_READ);
 		}
 	}
 
 	private void finishConnection(SelectionKey key) throws IOException {
 		SocketChannel socketChannel = (SocketChannel) key.channel();
+		ServerConnection connection = (ServerConnection) key.attachment();
 	
 		// Finish the connection. If the connection operation failed
 		// this will raise an IOException.
@@ -263,14 +398,22 @@ public class Client implements Runnable {
 			// Cancel the channel's registration with selector
 			System.out.println(e);
 			key.cancel();
+			socketChannel.close();
+			connection.closed(e);
 			return;
 		}
 	
-		// Register an interest in writing on this channel
-		key.interestOps(SelectionKey.OP_WRITE);
+		// Register an interest in reading responses on this channel,
+		// and in writing if packets were queued while connecting
+		if (connection.setConnected()) {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
 	}
 
-	private SocketChannel initiateConnection() throws IOException {
+	private ServerConnection initiateConnection() throws IOException {
 		// Create a non-blocking socket channel
 		SocketChannel socketChannel = SocketChannel.open();
 		socketChannel.configureBlocking(false);
@@ -279,11 +422,17 @@ public class Client implements Runnable {
 		socketChannel.connect(new InetSocketAddress(hostAddress, port));
 	
 		// Queue a channel registration
-		synchronized(this.pendingChanges) {
-			pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
+		ServerConnection connection = new ServerConnection(socketChannel, digestAlgorithm);
+		if (digestAlgorithm != DigestAlgorithm.DEFAULT) {
+			// ask for the algorithm before any packet; it is written once the connection is established
+			PooledBuffer handshake = bufferPool.acquire(Frame.HEADER_SIZE);
+			Frame.putHandshake(handshake.getBuffer(), digestAlgorithm);
+			handshake.getBuffer().flip();
+			connection.enqueue(handshake);
 		}
+		pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT, connection));
 		
-		return socketChannel;
+		return connection;
 	}
 
 	private Selector initSelector() throws IOException {
@@ -299,25 +448,24 @@ public class Client implements Runnable {
 		while (true) {
 			try {
 				// Process any pending changes
-				synchronized (pendingChanges) {
-					Iterator<ChangeRequest> changes = pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(selector);
+				ChangeRequest change;
+				while ((change = pendingChanges.poll()) != null) {
+					switch (change.type) {
+					case ChangeRequest.CHANGEOPS:
+						SelectionKey key = change.socket.keyFor(selector);
+						if (key != null && key.isValid()) {
 							key.interestOps(change.ops);
-							break;
-						case ChangeRequest.REGISTER:
-							change.socket.register(selector, change.ops);
-							break;
 						}
+						break;
+					case ChangeRequest.REGISTER:
+						change.socket.register(selector, change.ops, change.attachment);
+						break;
 					}
-					pendingChanges.clear();
 				}
 
 				// Wait for an event one of the registered channels
 				selector.select();
+				wakeupPending.set(false);
 
 				// Iterate over the set of keys for which events are available
 				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
@@ -332,10 +480,13 @@ public class Client implements Runnable {
 					// Check what type of event is available and deal with it
 					if (key.isConnectable()) {
 						finishConnection(key);
-					} else if (key.isReadable()) {
-						read(key);
-					} else if (key.isWritable()) {
-						write(key);
+					} else {
+						if (key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key);
+						}
 					}
 				}
 			} catch (Exception e) {
@@ -347,17 +498,30 @@ public class Client implements Runnable {
 	
 	public static void main(String[] args) {
 		
-		if(args.length!=3){ 
-			System.out.println("Usage: java cs455.scaling.client.Client server-host server-port message-rate");
+		if(args.length<3 || args.length>6){ 
+			System.out.println("Usage: java cs455.scaling.client.Client server-host server-port message-rate [connection-count [window-size [digest]]]");
+			System.out.println("\tdigest: sha1 (default), sha256 or crc32c");
 			return;
 		}
+		int connectionCount = 1;
+		if(args.length>=4){
+			connectionCount = Integer.parseInt(args[3]);
+		}
+		int windowSize = DEFAULT_WINDOW_SIZE;
+		if(args.length>=5){
+			windowSize = Integer.parseInt(args[4]);
+		}
+		DigestAlgorithm digestAlgorithm = DigestAlgorithm.DEFAULT;
+		if(args.length==6){
+			digestAlgorithm = DigestAlgorithm.fromName(args[5]);
+		}
 		
 		
 		
 			Client client = null;
 			
 			try {
-				client = new Client(InetAddress.getByName(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+				client = new Client(InetAddress.getByName(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), connectionCount, windowSize, digestAlgorithm);
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -366,7 +530,7 @@ public class Client implements Runnable {
 			//start thread
 			thread.start();
 			//start sending Data
-			client.sendData();
+			client.start();
 
 	}
 }
\ No newline at end of file
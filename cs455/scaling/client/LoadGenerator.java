@@ -0,0 +1,340 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.PooledBuffer;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March, 2012
+ *
+ * Load generator: simulates many logical clients from one process, so the server's saturation point
+ * can be found without running a JVM per client. Every logical client has its own connection to the server
+ * and behaves like a Client: it sends a packet of random data R times a second, keeps at most window packets
+ * in flight (skipping a packet while its window is full) and checks each response against the hash at the
+ * head of its FIFO. The connections are spread over a few Clients, each with one selector thread.
+ * Nothing is counted during the warm-up. Only packets sent during the measurement window are counted,
+ * along with their responses whenever they arrive; once the responses have come in (or a few seconds have passed)
+ * a throughput and round trip latency report is printed
+ *
+ */
+public class LoadGenerator {
+
+	public static final String USAGE =
+			"Usage: java cs455.scaling.client.LoadGenerator server-host server-port [option=value ...]\n" +
+			"Options:\n" +
+			"\tclients=N       logical clients, each with its own connection (default 1000)\n" +
+			"\trate=R          packets each client sends per second (default 4)\n" +
+			"\tpayload=BYTES   size of each packet's random payload (default 8192)\n" +
+			"\twindow=N        most packets a client has in flight; a packet is skipped while the window is full (default 16)\n" +
+			"\tselectors=N     selector threads the connections are spread over (default 4)\n" +
+			"\tsenders=N       threads generating and hashing packets (default 2)\n" +
+			"\tdigest=NAME     algorithm the server is asked to answer with: sha1, sha256 or crc32c (default sha1)\n" +
+			"\twarmup-s=N      seconds to run before counting (default 10)\n" +
+			"\tmeasure-s=N     seconds to count for (default 30)\n" +
+			"\tconnect-timeout-s=N  longest to wait for the connections to be established (default 30)";
+
+	private int clientCount = 1000;
+	private int messageRate = 4;
+	private int payloadSize = Client.PAYLOAD_SIZE;
+	private int windowSize = Client.DEFAULT_WINDOW_SIZE;
+	private int selectorCount = 4;
+	private int senderCount = 2;
+	private int warmupSeconds = 10;
+	private int measureSeconds = 30;
+	private int connectTimeoutSeconds = 30;
+	private DigestAlgorithm digestAlgorithm = DigestAlgorithm.DEFAULT;
+
+	// one per selector thread, each owning a share of the connections
+	private Client[] selectorClients;
+	private LogicalClient[] logicalClients;
+
+	private BufferPool bufferPool = new BufferPool(256);
+	private ScheduledExecutorService senders;
+
+	// longest to wait after the measurement window for responses to the packets sent in it
+	private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+	// only set during the measurement window
+	private volatile boolean measuring = false;
+	// packets sent during the measurement window; the counts below are of their responses
+	private LongAdder sentCount = new LongAdder();
+	// packets sent during the measurement window that haven't been answered or failed yet
+	private AtomicLong unansweredCount = new AtomicLong();
+	private LongAdder receivedCount = new LongAdder();
+	private LongAdder mismatchCount = new LongAdder();
+	private LongAdder failedCount = new LongAdder();
+	private LongAdder skippedCount = new LongAdder();
+	private LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * One simulated client: a connection, its send window and its packet count
+	 */
+	private class LogicalClient implements Runnable {
+		private Client client;
+		private ServerConnection connection;
+		private Semaphore window = new Semaphore(windowSize);
+		// only touched by the sender running this client's schedule
+		private int messageCount = 0;
+
+		LogicalClient(Client client, ServerConnection connection){
+			this.client = client;
+			this.connection = connection;
+		}
+
+		public void run(){
+			try {
+				sendData();
+			} catch (Exception e) {
+				// don't let one failure cancel the schedule
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Sends one packet to the server, unless the send window is full. Does not wait for the response
+		 */
+		private void sendData(){
+			// whether the packet was sent inside the measurement window decides if its response is counted
+			final boolean counted = measuring;
+			if(!window.tryAcquire()){
+				if(counted){
+					skippedCount.increment();
+				}
+				return;
+			}
+			messageCount++;
+			byte[] hashedData = new byte[digestAlgorithm.getLength()];
+			PooledBuffer packet = Client.createPacket(bufferPool, payloadSize, digestAlgorithm.getDigest(), hashedData);
+
+			final TransmissionHandler handler = new TransmissionHandler(messageCount, hashedData);
+			final long sentTime = System.nanoTime();
+			handler.getResponse().whenComplete(new BiConsumer<byte[], Throwable>(){
+				public void accept(byte[] response, Throwable failure){
+					window.release();
+					if(!counted){
+						return;
+					}
+					if(failure != null){
+						failedCount.increment();
+					}
+					else{
+						receivedCount.increment();
+						if(!handler.isMatch()){
+							mismatchCount.increment();
+						}
+						latency.record(System.nanoTime() - sentTime);
+					}
+					unansweredCount.decrementAndGet();
+				}
+			});
+			if(counted){
+				sentCount.increment();
+				unansweredCount.incrementAndGet();
+			}
+
+			try {
+				client.send(connection, packet, handler);
+			} catch (IOException e) {
+				handler.connectionClosed(e);
+			}
+		}
+	}
+
+	/**
+	 * Parse option=value arguments
+	 * @param options
+	 * @throws IllegalArgumentException if an option is unknown or its value is invalid
+	 */
+	public LoadGenerator(String[] options){
+		for(String option:options){
+			int split = option.indexOf('=');
+			if(split < 0){
+				throw new IllegalArgumentException("Expected option=value: " + option);
+			}
+			String name = option.substring(0, split);
+			String value = option.substring(split + 1);
+			if(name.equals("digest")){
+				try {
+					digestAlgorithm = DigestAlgorithm.fromName(value);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown digest algorithm: " + value);
+				}
+				continue;
+			}
+			int number;
+			try {
+				number = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+			}
+			if(number < 1 && !name.equals("warmup-s")){
+				throw new IllegalArgumentException(name + " must be positive");
+			}
+			if(name.equals("clients")){
+				clientCount = number;
+			}
+			else if(name.equals("rate")){
+				messageRate = number;
+			}
+			else if(name.equals("payload")){
+				payloadSize = number;
+			}
+			else if(name.equals("window")){
+				windowSize = number;
+			}
+			else if(name.equals("selectors")){
+				selectorCount = number;
+			}
+			else if(name.equals("senders")){
+				senderCount = number;
+			}
+			else if(name.equals("warmup-s")){
+				warmupSeconds = Math.max(0, number);
+			}
+			else if(name.equals("measure-s")){
+				measureSeconds = number;
+			}
+			else if(name.equals("connect-timeout-s")){
+				connectTimeoutSeconds = number;
+			}
+			else{
+				throw new IllegalArgumentException("Unknown option: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Open the connections, spread over selectorCount Clients, and start their selector threads
+	 * @return how many of the connections were established within the connect timeout
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int connect(InetAddress hostAddress, int port) throws IOException, InterruptedException {
+		int selectors = Math.min(selectorCount, clientCount);
+		selectorClients = new Client[selectors];
+		logicalClients = new LogicalClient[clientCount];
+		int next = 0;
+		for(int i=0; i<selectors; i++){
+			int connections = clientCount / selectors + (i < clientCount % selectors ? 1 : 0);
+			selectorClients[i] = new Client(hostAddress, port, messageRate, connections, windowSize, digestAlgorithm);
+			for(ServerConnection connection:selectorClients[i].getConnections()){
+				logicalClients[next++] = new LogicalClient(selectorClients[i], connection);
+			}
+			Thread thread = new Thread(selectorClients[i], "selector-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long deadline = System.currentTimeMillis() + connectTimeoutSeconds * 1000L;
+		while(true){
+			int connected = 0;
+			int failed = 0;
+			for(LogicalClient client:logicalClients){
+				if(client.connection.isConnected()){
+					connected++;
+				}
+				else if(!client.connection.getSocketChannel().isOpen()){
+					failed++;
+				}
+			}
+			if(connected + failed == clientCount || System.currentTimeMillis() > deadline){
+				return connected;
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Start every logical client's schedule, at a random offset within its first period
+	 * so the packets are spread out rather than sent in bursts
+	 */
+	private void startSending(){
+		final AtomicInteger senderNumber = new AtomicInteger();
+		senders = Executors.newScheduledThreadPool(senderCount, new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "sender-" + senderNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = 1000000000L / messageRate;
+		for(LogicalClient client:logicalClients){
+			long offset = ThreadLocalRandom.current().nextLong(period);
+			senders.scheduleAtFixedRate(client, offset, period, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Connect, warm up, measure and print the report
+	 * @return false if any response didn't match the hash of the packet it answered
+	 */
+	public boolean run(InetAddress hostAddress, int port) throws IOException, InterruptedException {
+		int connected = connect(hostAddress, port);
+		System.out.println("[LoadGenerator] " + connected + " of " + clientCount + " clients connected");
+		startSending();
+
+		Thread.sleep(warmupSeconds * 1000L);
+		latency.snapshotAndReset();
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(measureSeconds * 1000L);
+		measuring = false;
+		double seconds = (System.nanoTime() - start) / 1000000000.0;
+		senders.shutdownNow();
+		senders.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		// let the responses to packets sent near the end of the window arrive
+		long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		while(unansweredCount.get() > 0 && System.currentTimeMillis() < drainDeadline){
+			Thread.sleep(10);
+		}
+		LatencyHistogram.Snapshot latencies = latency.snapshotAndReset();
+
+		System.out.println();
+		System.out.println("[LoadGenerator] " + clientCount + " clients (" + connected + " connected) sending " + messageRate +
+				" packets/s of " + payloadSize + " bytes (" + digestAlgorithm + "), window " + windowSize + ", measured over " + String.format("%.1f", seconds) + " s");
+		System.out.println(String.format("[LoadGenerator] Offered: %.1f packets/s  Sent: %.1f packets/s  Received: %.1f packets/s",
+				(double) clientCount * messageRate, sentCount.sum() / seconds, receivedCount.sum() / seconds));
+		System.out.println("[LoadGenerator] Sent: " + sentCount.sum() + " Received: " + receivedCount.sum() +
+				" Mismatched: " + mismatchCount.sum() + " Failed: " + failedCount.sum() +
+				" Unanswered: " + unansweredCount.get() + " Skipped (window full): " + skippedCount.sum());
+		System.out.println("[LoadGenerator] Round trip latency: " + latencies);
+		return mismatchCount.sum() == 0;
+	}
+
+	public static void main(String[] args) {
+		if(args.length < 2){
+			System.out.println(USAGE);
+			return;
+		}
+		String[] options = new String[args.length - 2];
+		System.arraycopy(args, 2, options, 0, options.length);
+
+		try {
+			LoadGenerator generator = new LoadGenerator(options);
+			boolean passed = generator.run(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+			System.exit(passed ? 0 : 1);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println(USAGE);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
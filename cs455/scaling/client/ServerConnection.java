@@ -0,0 +1,199 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.PooledBuffer;
+
+/**
+ * One long-lived connection from the client to the server.
+ * Packets are pipelined over the connection, and since the link is FIFO each response
+ * is matched to the oldest TransmissionHandler still waiting on this connection
+ * @author Owner Theresa Wellington
+ *
+ */
+public class ServerConnection {
+	
+	private SocketChannel socketChannel;
+	
+	// what the server answers this connection's packets with
+	private DigestAlgorithm digestAlgorithm;
+	
+	// handlers for packets sent on this connection, in the order they were sent
+	private Queue<TransmissionHandler> handlers = new LinkedList<TransmissionHandler>();
+	// why the connection closed, null while it is open (guarded by handlers)
+	private IOException closeCause;
+	
+	// response currently being read (responses are binary digests, all of digestAlgorithm's length)
+	private ByteBuffer response;
+	
+	// packets waiting to be written, oldest first (guarded by this)
+	private ArrayDeque<PooledBuffer> outbound = new ArrayDeque<PooledBuffer>();
+	
+	private boolean connected = false;
+	// set once the connection has closed; packets queued after that are released right away (guarded by this)
+	private boolean closed = false;
+	
+	// set while the selecting thread has been asked to write this connection's packets
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	
+	/**
+	 * @param socketChannel
+	 * @param digestAlgorithm - what the server answers packets with (the caller sends the handshake, see Frame)
+	 */
+	public ServerConnection(SocketChannel socketChannel, DigestAlgorithm digestAlgorithm){
+		this.socketChannel = socketChannel;
+		this.digestAlgorithm = digestAlgorithm;
+		this.response = ByteBuffer.allocate(digestAlgorithm.getLength());
+	}
+	
+	public SocketChannel getSocketChannel(){
+		return socketChannel;
+	}
+	
+	public DigestAlgorithm getDigestAlgorithm(){
+		return digestAlgorithm;
+	}
+	
+	public synchronized boolean isConnected(){
+		return connected;
+	}
+	
+	/**
+	 * Mark the connection as established
+	 * @return true if packets were queued while connecting and the caller must ask for them to be written
+	 */
+	public boolean setConnected(){
+		synchronized(this){
+			connected = true;
+		}
+		return hasOutbound() && scheduleWrite();
+	}
+	
+	/**
+	 * Queue a packet to be written on this connection
+	 * @param packet - flipped, ready to write; released once it has been written, or right away if the connection has closed
+	 * @return true if the caller flipped the needs-write flag and must ask the selecting thread to write
+	 */
+	public boolean enqueue(PooledBuffer packet){
+		boolean connected;
+		synchronized(this){
+			if(closed){
+				packet.release();
+				return false;
+			}
+			outbound.add(packet);
+			connected = this.connected;
+		}
+		// until the connection is established, setConnected picks up the queued packets
+		return connected && scheduleWrite();
+	}
+	
+	private boolean scheduleWrite(){
+		return writeScheduled.compareAndSet(false, true);
+	}
+	
+	public synchronized boolean hasOutbound(){
+		return !outbound.isEmpty();
+	}
+	
+	/**
+	 * Write queued packets until they have all been written or the socket's buffer fills up
+	 * @return true if nothing is left to write
+	 * @throws IOException
+	 */
+	public synchronized boolean flush() throws IOException {
+		while(!outbound.isEmpty()){
+			ByteBuffer buf = outbound.peek().getBuffer();
+			socketChannel.write(buf);
+			if(buf.hasRemaining()){
+				// the socket's buffer is full
+				return false;
+			}
+			outbound.poll().release();
+		}
+		return true;
+	}
+	
+	/**
+	 * Called by the selecting thread once flush has emptied the queue
+	 * @return true if packets were queued in the meantime and another write has been scheduled
+	 */
+	public boolean writeDone(){
+		writeScheduled.set(false);
+		return hasOutbound() && scheduleWrite();
+	}
+	
+	/**
+	 * Register the handler waiting for the response to the next packet sent on this connection
+	 * @param handler
+	 * @return false if the connection has closed; the handler has been failed and the packet must not be sent
+	 */
+	public boolean expectResponse(TransmissionHandler handler){
+		synchronized(handlers){
+			if(closeCause != null){
+				handler.connectionClosed(closeCause);
+				return false;
+			}
+			handlers.offer(handler);
+			return true;
+		}
+	}
+	
+	/**
+	 * Consume the bytes read from the channel, passing each complete response to its handler
+	 * @param data - bytes read from the channel, ready to be read from
+	 */
+	public void handleResponses(ByteBuffer data){
+		while(data.hasRemaining()){
+			int count = Math.min(data.remaining(), response.remaining());
+			data.get(response.array(), response.position(), count);
+			response.position(response.position() + count);
+			if(response.hasRemaining()){
+				return;
+			}
+			
+			response.flip();
+			TransmissionHandler handler;
+			synchronized(handlers){
+				handler = handlers.poll();
+			}
+			if(handler == null){
+				System.out.println("Unexpected response from server");
+			}
+			else{
+				handler.handleResponse(response);
+			}
+			response.clear();
+		}
+	}
+	
+	/**
+	 * Fail every handler still waiting for a response on this connection
+	 * @param cause
+	 */
+	public void closed(IOException cause){
+		synchronized(this){
+			closed = true;
+			PooledBuffer buf;
+			while((buf = outbound.poll()) != null){
+				buf.release();
+			}
+		}
+		synchronized(handlers){
+			// handlers registered from here on are failed by expectResponse instead
+			closeCause = cause;
+			TransmissionHandler handler;
+			while((handler = handlers.poll()) != null){
+				handler.connectionClosed(cause);
+			}
+		}
+	}
+
+}
@@ -1,27 +1,85 @@
 package cs455.scaling.client;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import cs455.scaling.util.Frame;
+
 /**
- * Class to deal with responses from server
+ * Class to deal with responses from server - tracks one packet in flight:
+ * the hash of the data that was sent and the server's response to it
  * @author Owner Theresa Wellington
  *
  */
 public class TransmissionHandler {
-	private byte[] rsp = null;
+	private int messageNumber;
+	private byte[] sentHash;
+	private CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
 	
-	public synchronized boolean handleResponse(byte[] rsp) {
-		this.rsp = rsp;
-		this.notify();
-		return true;
+	/**
+	 * @param messageNumber
+	 * @param sentHash - binary digest of the data that was sent
+	 */
+	public TransmissionHandler(int messageNumber, byte[] sentHash) {
+		this.messageNumber = messageNumber;
+		this.sentHash = sentHash;
+	}
+	
+	public int getMessageNumber() {
+		return messageNumber;
+	}
+	
+	public byte[] getSentHash() {
+		return sentHash;
+	}
+	
+	/**
+	 * @return completed with the digest the server sent back, or exceptionally if the connection was lost first
+	 */
+	public CompletableFuture<byte[]> getResponse() {
+		return response;
+	}
+	
+	/**
+	 * @param rsp - the digest received from the server (only valid during this call)
+	 */
+	public void handleResponse(ByteBuffer rsp) {
+		if (matches(rsp)) {
+			// same bytes as sent, no need to copy them. Checked first: a CRC32C can be all zeros,
+			// like an error response (if the server dropped such a packet it is counted as answered)
+			response.complete(sentHash);
+		}
+		else if (Frame.isError(rsp)) {
+			response.completeExceptionally(new IOException("Server dropped the packet (queue full)"));
+		}
+		else {
+			byte[] received = new byte[rsp.remaining()];
+			rsp.get(received);
+			response.complete(received);
+		}
+	}
+	
+	/**
+	 * @return true if the response is the hash that was sent
+	 */
+	public boolean isMatch() {
+		return response.getNow(null) == sentHash;
 	}
 	
-	public synchronized String waitForResponse() {
-		while(rsp == null) {
-			try {
-				this.wait();
-			} catch (InterruptedException e) {
+	private boolean matches(ByteBuffer rsp) {
+		if (rsp.remaining() != sentHash.length) {
+			return false;
+		}
+		for (int i = 0; i < sentHash.length; i++) {
+			if (rsp.get(rsp.position() + i) != sentHash[i]) {
+				return false;
 			}
 		}
-		
-		return new String(rsp);
+		return true;
+	}
+	
+	public void connectionClosed(IOException cause) {
+		response.completeExceptionally(cause);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package cs455.scaling.pool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How the ThreadPoolManager runs its Tasks
+ * @author Owner Theresa Wellington
+ *
+ */
+public enum ExecutorMode {
+	
+	// a fixed (or elastic) set of Workers pulling Tasks from the bounded queue
+	POOL,
+	
+	// a new virtual thread for every Task, no queue
+	VIRTUAL,
+	
+	// run each Task right away on the thread that submits it (the reactor that read the packet), no queue
+	INLINE;
+	
+	/**
+	 * @param name - mode name as given on the command line, e.g. virtual
+	 * @return
+	 */
+	public static ExecutorMode fromName(String name){
+		return valueOf(name.toUpperCase());
+	}
+	
+	/**
+	 * Create the executor VIRTUAL mode runs its Tasks on. Virtual threads need Java 21;
+	 * on older JVMs each Task runs on a (cached) platform thread instead
+	 * @return
+	 */
+	static ExecutorService newPerTaskExecutor(){
+		try {
+			// looked up by name so the server still builds and runs on JVMs without virtual threads
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads need Java 21 or later, running each task on a platform thread instead");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+}
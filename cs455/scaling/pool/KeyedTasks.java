@@ -0,0 +1,102 @@
+package cs455.scaling.pool;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Serializes Tasks by key (their connection's SocketChannel) for OrderingMode.KEYED:
+ * while one Task of a key is queued or running, later Tasks of that key wait here,
+ * in the order they were submitted, until it finishes. The worker that takes the queued
+ * Task may take the ones waiting behind it too, and run them after it in the same batch. Keys are spread over striped
+ * maps so submitters and workers only contend when their keys share a stripe
+ * @author Owner Theresa Wellington
+ *
+ */
+public class KeyedTasks {
+	
+	private static final int STRIPES = 64;
+	
+	// keys with a Task queued or running, mapped to the Tasks waiting behind it
+	// (null until a second Task arrives); each map is its own lock
+	private final HashMap<Object, ArrayDeque<Task>>[] active;
+	
+	public KeyedTasks(){
+		@SuppressWarnings("unchecked")
+		HashMap<Object, ArrayDeque<Task>>[] maps = (HashMap<Object, ArrayDeque<Task>>[]) new HashMap<?, ?>[STRIPES];
+		active = maps;
+		for(int i=0; i<STRIPES; i++){
+			active[i] = new HashMap<Object, ArrayDeque<Task>>();
+		}
+	}
+	
+	/**
+	 * Called as a Task is submitted
+	 * @param task
+	 * @return true if the Task may run now; false if it has to wait for an earlier Task of its key
+	 * 			(finish hands it back once that one is done)
+	 */
+	public boolean start(Task task){
+		Object key = task.getSocketChannel();
+		HashMap<Object, ArrayDeque<Task>> map = stripe(key);
+		synchronized(map){
+			if(!map.containsKey(key)){
+				map.put(key, null);
+				return true;
+			}
+			ArrayDeque<Task> waiting = map.get(key);
+			if(waiting == null){
+				waiting = new ArrayDeque<Task>();
+				map.put(key, waiting);
+			}
+			waiting.add(task);
+			return false;
+		}
+	}
+	
+	/**
+	 * Take Tasks waiting behind task, which the caller will run after it (in order, on the same thread)
+	 * @param task - a Task start let run, or one taken with it
+	 * @param into - filled from offset, in submission order
+	 * @param max - most Tasks to take
+	 * @return number of Tasks taken
+	 */
+	public int takeWaiting(Task task, Task[] into, int offset, int max){
+		Object key = task.getSocketChannel();
+		HashMap<Object, ArrayDeque<Task>> map = stripe(key);
+		synchronized(map){
+			ArrayDeque<Task> waiting = map.get(key);
+			int count = 0;
+			Task next;
+			while(waiting != null && count < max && (next = waiting.poll()) != null){
+				into[offset + count++] = next;
+			}
+			return count;
+		}
+	}
+	
+	/**
+	 * Called once the Task start let run, and any taken with it, have finished (or been rejected)
+	 * @param task - any of them
+	 * @return the next Task of the same key, which may now run, or null if none is waiting
+	 */
+	public Task finish(Task task){
+		Object key = task.getSocketChannel();
+		HashMap<Object, ArrayDeque<Task>> map = stripe(key);
+		synchronized(map){
+			ArrayDeque<Task> waiting = map.get(key);
+			Task next = waiting == null ? null : waiting.poll();
+			if(next == null){
+				map.remove(key);
+			}
+			return next;
+		}
+	}
+	
+	private HashMap<Object, ArrayDeque<Task>> stripe(Object key){
+		int hash = key.hashCode();
+		// spread the hash's high bits into the low ones used to pick a stripe
+		hash ^= hash >>> 16;
+		return active[hash & (STRIPES - 1)];
+	}
+
+}
@@ -0,0 +1,26 @@
+package cs455.scaling.pool;
+
+/**
+ * How the ThreadPoolManager keeps one connection's responses in the order its packets arrived
+ * @author Owner Theresa Wellington
+ *
+ */
+public enum OrderingMode {
+	
+	// a connection's packets may be hashed in parallel; the connection holds back a response
+	// that is ready before an earlier one (see Connection.enqueue)
+	REORDER,
+	
+	// a connection's packets are hashed one at a time, in the order they arrived; packets of
+	// different connections still run in parallel, and one busy connection can't take over every worker
+	KEYED;
+	
+	/**
+	 * @param name - mode name as given on the command line, e.g. keyed
+	 * @return
+	 */
+	public static OrderingMode fromName(String name){
+		return valueOf(name.toUpperCase());
+	}
+
+}
@@ -0,0 +1,29 @@
+package cs455.scaling.pool;
+
+/**
+ * What the ThreadPoolManager does with a Task submitted while its queue is full
+ * @author Owner Theresa Wellington
+ *
+ */
+public enum OverflowPolicy {
+	
+	// wait for a worker to make room. The submitting selector thread is held meanwhile: it parks
+	// (up to a millisecond at a time) and neither reads, writes responses nor flushes them until it gets room
+	BLOCK,
+	
+	// discard the oldest queued Task to make room, answering it with an error response
+	// (if every queued Task is held back by KEYED ordering, the new Task is rejected instead)
+	DROP_OLDEST,
+	
+	// discard the new Task, answering it with an error response
+	REJECT;
+	
+	/**
+	 * @param name - policy name as given on the command line, e.g. drop-oldest
+	 * @return
+	 */
+	public static OverflowPolicy fromName(String name){
+		return valueOf(name.toUpperCase().replace('-', '_'));
+	}
+
+}
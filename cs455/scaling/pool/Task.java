@@ -1,8 +1,11 @@
 package cs455.scaling.pool;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
-import cs455.scaling.server.Server;
+import cs455.scaling.server.Connection;
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.PooledBuffer;
 
 /**
  * Stores information for sending a message over a socketchannel
@@ -12,14 +15,26 @@ import cs455.scaling.server.Server;
 public class Task {
 	
 	private String id;
-	private SocketChannel socketChannel;
-	private byte[] array;
-	int arraySize;
+	private Connection connection;
+	private PooledBuffer payload;
+	// position of the packet among those read from its connection; its response is written in this order
+	private long sequence = -1;
+	// what the packet is answered with, as chosen by its connection
+	private DigestAlgorithm digestAlgorithm = DigestAlgorithm.DEFAULT;
+	// System.nanoTime() when the packet was read, and when the Task was submitted to the pool
+	private long readTime;
+	private long queuedTime;
 	
-	public Task(SocketChannel socketChannel, byte[] array, int arraySize){
-		this.socketChannel = socketChannel;
-		this.array = array;
-		this.arraySize = arraySize;
+	/**
+	 * Creates a new Task for a packet read from connection
+	 * @param connection
+	 * @param payload - the packet's payload; the Task takes over the caller's reference to it
+	 */
+	public Task(Connection connection, PooledBuffer payload){
+		this.connection = connection;
+		this.payload = payload;
+		this.sequence = connection.nextSequence();
+		this.digestAlgorithm = connection.getDigestAlgorithm();
 	}
 	
 	public Task(String identifier){
@@ -30,16 +45,50 @@ public class Task {
 		return id;
 	}
 	
+	public Connection getConnection(){
+		return connection;
+	}
+	
 	public SocketChannel getSocketChannel(){
-		return socketChannel;
+		return connection.getSocketChannel();
+	}
+	
+	public long getSequence(){
+		return sequence;
+	}
+	
+	public DigestAlgorithm getDigestAlgorithm(){
+		return digestAlgorithm;
+	}
+	
+	public long getReadTime(){
+		return readTime;
+	}
+	
+	public void setReadTime(long time){
+		readTime = time;
+	}
+	
+	public long getQueuedTime(){
+		return queuedTime;
+	}
+	
+	void setQueuedTime(long time){
+		queuedTime = time;
 	}
 	
-	public byte[] getArray(){
-		return array;
+	public ByteBuffer getPayload(){
+		return payload.getBuffer();
 	}
 	
-	public int getArraySize(){
-		return arraySize;
+	/**
+	 * Return the payload to its pool once it is no longer needed
+	 */
+	public void release(){
+		if(payload != null){
+			payload.release();
+			payload = null;
+		}
 	}
 
 	
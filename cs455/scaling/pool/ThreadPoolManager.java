@@ -14,8 +14,19 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import cs455.scaling.server.Server;
+import cs455.scaling.util.LatencyHistogram;
 
 
 /**
@@ -25,24 +36,96 @@ import cs455.scaling.server.Server;
  *
  * 2. Interaction between the components
  * 		Threads in thread pool should be created just once
- * 		Thread pool needs methods that allow:
- * 			(1) spare worker thread to be retieved
- * 			(2) worker thread to return itself to the pool after it has finished its task
  * 		Thread pool manager also maintains a list of work that it needs to perform
- * 		Maintains these work units in a FIFO queue implemented using linked list
- * 		Work units are added to the tail of this work queue
- * 		When spare workers are available, they are assigned work form the top of the queue
+ * 		Every worker has a deque of its own (see WorkDeque); a work unit is added to the tail of
+ * 			the deque of the worker its connection is assigned to, so one connection's packets are
+ * 			hashed by the same worker, or to a shared FIFO queue (a lock-free ring buffer, see WorkQueue)
+ * 			if that worker isn't running
+ * 		Workers pull work from the head of their own deque, then from the shared queue, several units
+ * 			per wakeup when it is backed up; a worker with neither steals from the tail of another
+ * 			worker's deque, so one busy connection doesn't leave the other workers idle.
+ * 			A worker with nothing to do parks itself until a new work unit wakes it
+ * 		Work units of one connection may finish out of order (after a steal); the connection
+ * 			writes their responses back in the order the packets arrived (see Connection).
+ * 			In OrderingMode.KEYED a connection's work units are instead queued one at a time:
+ * 			the next is only queued once the one before it is done (see KeyedTasks)
+ * 		The queues are bounded together: once they fill past a high-water mark the pool reports itself saturated
+ * 			(the server stops reading) until the workers drain it below a low-water mark;
+ * 			Tasks that still arrive while it is full are handled by its OverflowPolicy
+ * 		The pool keeps at least its core number of workers. When Tasks back up (queue depth or
+ * 			time spent queued past a threshold) it starts extra workers, at most one per
+ * 			GROW_INTERVAL and up to its maximum size; an extra worker that stays idle for the
+ * 			keep-alive time retires
+ * 		In ExecutorMode.VIRTUAL there are no Worker threads or queue: every Task gets its own
+ * 			virtual thread, and the queue capacity and water marks apply to the Tasks in flight
+ * 		In ExecutorMode.INLINE addTask runs the Task itself, on the submitting thread
  *
  */
 public class ThreadPoolManager {
 	
-	private Worker[] workers;
-	private Thread[] workerThreads;
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
 	
-	private Queue<Task> taskQueue = new LinkedList<Task>();
-	private Queue<Worker> workerQueue = new LinkedList<Worker>();
+	// shortest time between starting two extra workers, so a burst doesn't start them all at once
+	public static final long GROW_INTERVAL_MILLIS = 100;
+	
+	// OverflowPolicy.BLOCK: the submitter parks this long while the queues are full, doubling up to the maximum,
+	// so it doesn't take CPU from the workers it is waiting for
+	private static final long MIN_BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long MAX_BLOCK_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	// one slot per possible worker (maximum pool size); a slot is null while its worker isn't running
+	private AtomicReferenceArray<Worker> workers;
+	private int coreSize;
+	private AtomicInteger poolSize = new AtomicInteger();
+	private long keepAliveNanos = TimeUnit.SECONDS.toNanos(60);
+	private int growQueueDepth;
+	private long growWaitNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private volatile long lastGrowTime;
+	private volatile boolean started = false;
+	// set by stop(); no new Tasks are accepted and workers exit once the queue is empty
+	private volatile boolean shutdown = false;
+	
+	private LongAdder completedCount = new LongAdder();
+	private AtomicLong abandonedCount = new AtomicLong();
+	
+	// resizes since the last call to getResizeCounts
+	private AtomicInteger grownCount = new AtomicInteger();
+	private AtomicInteger retiredCount = new AtomicInteger();
+	
+	// Tasks whose connection's worker isn't running
+	private WorkQueue<Task> taskQueue;
+	// Tasks waiting for a worker, in the shared queue and the workers' deques together,
+	// plus those KEYED ordering holds back behind an earlier Task of their connection
+	private AtomicInteger queuedCount = new AtomicInteger();
+	// of those, the Tasks in the shared queue and the deques, that a worker can take now
+	private AtomicInteger waitingCount = new AtomicInteger();
+	// Tasks taken from another worker's deque since the last call to getStolenCount
+	private LongAdder stolenCount = new LongAdder();
 	private Server server;
 	
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private int highWater;
+	private int lowWater;
+	// set when the queue passes the high-water mark, cleared when it drains below the low-water mark
+	private AtomicBoolean saturated = new AtomicBoolean(false);
+	
+	public static final int DEFAULT_WORKER_BATCH_SIZE = 8;
+	private int workerBatchSize = DEFAULT_WORKER_BATCH_SIZE;
+	
+	// where the next search for an idle worker starts, so wakeups are spread over the pool
+	private AtomicInteger nextWorker = new AtomicInteger();
+	
+	private ExecutorMode mode = ExecutorMode.POOL;
+	private OrderingMode ordering = OrderingMode.REORDER;
+	// KEYED ordering: Tasks waiting for an earlier Task of their connection
+	private KeyedTasks keyedTasks = new KeyedTasks();
+	// VIRTUAL mode: runs each Task on its own thread, through a task worker's hashing path
+	private ExecutorService taskExecutor;
+	// VIRTUAL and INLINE modes: one Worker per reactor, by reactor id, hashing the Tasks that reactor read
+	private Worker[] taskWorkers;
+	// VIRTUAL mode only: Tasks submitted but not yet finished
+	private AtomicInteger inFlight = new AtomicInteger();
+	
 
 	
 	/**
@@ -50,82 +133,829 @@ public class ThreadPoolManager {
 	 * @param poolSize number of threads in the pool
 	 */
 	public ThreadPoolManager(int poolSize, Server server){
-		workers = new Worker[poolSize];
-		workerThreads = new Thread[poolSize];
-		
-		for(int i=0; i<poolSize; i++){
-			Worker worker = new Worker(this, i);
-			workers[i] = worker;
-			workerThreads[i] = new Thread(worker);
+		this(poolSize, DEFAULT_QUEUE_CAPACITY, server);
+	}
+	
+	/**
+	 * Create a new ThreadPoolManager
+	 * @param poolSize number of threads in the pool
+	 * @param queueCapacity maximum number of Tasks waiting for a worker (rounded up to a power of two)
+	 */
+	public ThreadPoolManager(int poolSize, int queueCapacity, Server server){
+		this(poolSize, poolSize, queueCapacity, server);
+	}
+	
+	/**
+	 * Create a new ThreadPoolManager that grows and shrinks between coreSize and maxSize threads
+	 * @param coreSize number of threads the pool always keeps
+	 * @param maxSize most threads the pool grows to
+	 * @param queueCapacity maximum number of Tasks waiting for a worker (rounded up to a power of two)
+	 */
+	public ThreadPoolManager(int coreSize, int maxSize, int queueCapacity, Server server){
+		if(coreSize < 1 || maxSize < coreSize){
+			throw new IllegalArgumentException("Need 1 <= core size <= max size");
 		}
+		this.coreSize = coreSize;
+		workers = new AtomicReferenceArray<Worker>(maxSize);
+		taskQueue = new WorkQueue<Task>(queueCapacity);
+		setWaterMarks(taskQueue.capacity() * 3 / 4, taskQueue.capacity() / 4);
+		growQueueDepth = Math.max(1, taskQueue.capacity() / 16);
 		this.server = server;
 	
 	}
 	
 	
 	
+	/**
+	 * @param mode - how Tasks are run; must be set before start()
+	 */
+	public void setExecutorMode(ExecutorMode mode){
+		this.mode = mode;
+	}
+	
+	public ExecutorMode getExecutorMode(){
+		return mode;
+	}
+	
+	/**
+	 * @param keepAliveMillis - how long an extra worker stays idle before it retires
+	 */
+	public void setKeepAlive(long keepAliveMillis){
+		keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+	}
+	
+	/**
+	 * @param queueDepth - queue length at which an extra worker is started
+	 * @param waitMillis - time a Task spends queued after which an extra worker is started
+	 */
+	public void setGrowthThresholds(int queueDepth, long waitMillis){
+		growQueueDepth = queueDepth;
+		growWaitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+	}
+	
+	/**
+	 * @return number of worker threads currently running
+	 */
+	public int getPoolSize(){
+		return poolSize.get();
+	}
+	
+	public int getCoreSize(){
+		return coreSize;
+	}
+	
+	public int getMaxSize(){
+		return workers.length();
+	}
+	
+	/**
+	 * @return {workers started, workers retired} since the last call
+	 */
+	public int[] getResizeCounts(){
+		return new int[] {grownCount.getAndSet(0), retiredCount.getAndSet(0)};
+	}
+	
+	public void setOverflowPolicy(OverflowPolicy policy){
+		overflowPolicy = policy;
+	}
+	
+	/**
+	 * @param high - queue length at which the pool becomes saturated
+	 * @param low - queue length at which a saturated pool stops being saturated
+	 */
+	public void setWaterMarks(int high, int low){
+		if(low > high || high > taskQueue.capacity()){
+			throw new IllegalArgumentException("Need low-water <= high-water <= queue capacity (" + taskQueue.capacity() + ")");
+		}
+		highWater = high;
+		lowWater = low;
+	}
+	
+	/**
+	 * @return true while the queue is filled past its high-water mark and hasn't yet drained
+	 * 			below its low-water mark; callers should stop submitting work meanwhile
+	 */
+	public boolean isSaturated(){
+		return saturated.get();
+	}
+	
+	public int getQueueCapacity(){
+		return taskQueue.capacity();
+	}
+	
+	/**
+	 * @return number of Tasks waiting for a worker
+	 */
+	public int getQueueSize(){
+		if(mode == ExecutorMode.VIRTUAL){
+			return inFlight.get();
+		}
+		return queuedCount.get();
+	}
+	
+	/**
+	 * @return number of Tasks idle workers took from busy workers' deques since the last call
+	 */
+	public long getStolenCount(){
+		return stolenCount.sumThenReset();
+	}
+	
 	/**
 	 * Begin accepting Tasks and executing them on the thread pool. This method must be run before any Tasks will run
 	 */
 	public void start(){
-		for(Thread thread:workerThreads){
-			thread.start();
+		started = true;
+		if(mode != ExecutorMode.POOL){
+			taskWorkers = new Worker[server.getReactorCount()];
+			for(int i=0; i<taskWorkers.length; i++){
+				taskWorkers[i] = new Worker(this, i);
+			}
+			if(mode == ExecutorMode.VIRTUAL){
+				taskExecutor = ExecutorMode.newPerTaskExecutor();
+			}
+			return;
 		}
-		
-		for(Worker worker:workers){
-			workerQueue.offer(worker);
+		for(int i=0; i<coreSize; i++){
+			addWorker();
 		}
 		
 	}
 	
 	
 	/**
-	 * Shut down the thread pool
+	 * Shut down the thread pool right away; Tasks still queued are abandoned
 	 */
 	public void stop(){
-		for(Worker worker:workers){
-			worker.stop();
+		stop(0);
+	}
+	
+	/**
+	 * Shut down the thread pool. No new Tasks are accepted and the workers drain the queue
+	 * until the timeout passes; Tasks still queued then are abandoned and answered with an error response.
+	 * Returns once every worker thread has exited
+	 * @param timeoutMillis - longest to wait for the queue to drain
+	 * @return true if every queued Task was completed
+	 */
+	public boolean stop(long timeoutMillis){
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized(this){
+			// no workers can be added from here on
+			shutdown = true;
+		}
+		if(mode == ExecutorMode.VIRTUAL){
+			return stopExecutor(timeoutMillis);
 		}
+		if(mode == ExecutorMode.INLINE){
+			// nothing is ever queued
+			return true;
+		}
+		
+		// wake the idle workers so they notice the shutdown once the queue is empty
+		wakeAll();
+		if(joinWorkers(deadline)){
+			return true;
+		}
+		
+		// out of time: stop the workers after their current Task and give up on the rest
+		for(int i=0; i<workers.length(); i++){
+			Worker worker = workers.get(i);
+			if(worker != null){
+				worker.stop();
+			}
+		}
+		for(int i=0; i<workers.length(); i++){
+			Worker worker = workers.get(i);
+			if(worker != null){
+				worker.join(0);
+			}
+		}
+		// (once the workers are gone, so none of them can queue a KEYED successor after this)
+		Task task;
+		while((task = pollOldest()) != null){
+			abandonedCount.incrementAndGet();
+			rejectQueued(task);
+		}
+		return false;
+	}
+	
+	/**
+	 * stop(timeoutMillis) for VIRTUAL mode
+	 */
+	private boolean stopExecutor(long timeoutMillis){
+		taskExecutor.shutdown();
+		try {
+			if(taskExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)){
+				return true;
+			}
+			// out of time: give up on the Tasks that haven't started
+			for(Runnable runnable:taskExecutor.shutdownNow()){
+				abandonRun(((TaskRunner) runnable).task);
+			}
+			taskExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+	
+	/**
+	 * Wait for every worker thread to exit
+	 * @param deadline - System.currentTimeMillis() to give up at
+	 * @return true if they all exited in time
+	 */
+	private boolean joinWorkers(long deadline){
+		for(int i=0; i<workers.length(); i++){
+			Worker worker = workers.get(i);
+			if(worker == null){
+				continue;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0 || !worker.join(remaining)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean isShutdown(){
+		return shutdown;
+	}
+	
+	/**
+	 * @return number of Tasks the workers have finished
+	 */
+	public long getCompletedCount(){
+		return completedCount.sum();
+	}
+	
+	/**
+	 * @return number of Tasks given up on because the pool was shutting down
+	 */
+	public long getAbandonedCount(){
+		return abandonedCount.get();
+	}
+	
+	void tasksCompleted(int count){
+		completedCount.add(count);
+	}
+	
+	/**
+	 * Called by a worker once it has sent the responses to a batch of Tasks;
+	 * in KEYED ordering, queues the Task waiting behind each one
+	 * @param tasks - the Tasks are tasks[0] to tasks[count - 1]
+	 */
+	void tasksCompleted(Task[] tasks, int count){
+		completedCount.add(count);
+		if(ordering != OrderingMode.KEYED){
+			return;
+		}
+		for(int i=0; i<count; i++){
+			if(!lastOfConnection(tasks, i, count)){
+				// its connection's Tasks in this batch finish with the last of them
+				continue;
+			}
+			Task next = keyedTasks.finish(tasks[i]);
+			if(next != null){
+				dispatchHeld(next);
+			}
+		}
+	}
+	
+	/**
+	 * @return true if no Task after tasks[index] (up to tasks[count - 1]) is for the same connection
+	 */
+	private static boolean lastOfConnection(Task[] tasks, int index, int count){
+		for(int i=index + 1; i<count; i++){
+			if(tasks[i].getConnection() == tasks[index].getConnection()){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param ordering - how one connection's responses are kept in order; must be set before start()
+	 */
+	public void setOrdering(OrderingMode ordering){
+		this.ordering = ordering;
+	}
+	
+	public OrderingMode getOrdering(){
+		return ordering;
+	}
+	
+	/**
+	 * @param batchSize - most Tasks a worker pulls from the queue per wakeup; must be set before start()
+	 */
+	public void setWorkerBatchSize(int batchSize){
+		if(batchSize < 1){
+			throw new IllegalArgumentException("Worker batch size must be positive");
+		}
+		workerBatchSize = batchSize;
+	}
+	
+	int getWorkerBatchSize(){
+		return workerBatchSize;
+	}
+	
+	/**
+	 * Start a worker in the first free slot
+	 * @return false if the pool is already at its maximum size or is shutting down
+	 */
+	private synchronized boolean addWorker(){
+		if(shutdown){
+			return false;
+		}
+		for(int i=0; i<workers.length(); i++){
+			if(workers.get(i) == null){
+				Worker worker = new Worker(this, i);
+				workers.set(i, worker);
+				poolSize.incrementAndGet();
+				worker.start();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Start an extra worker if Tasks are backing up, the pool isn't at its maximum size
+	 * and no other worker was started in the last GROW_INTERVAL_MILLIS
+	 */
+	private void grow(){
+		long now = System.nanoTime();
+		if(!started || shutdown || poolSize.get() >= workers.length() || now - lastGrowTime < TimeUnit.MILLISECONDS.toNanos(GROW_INTERVAL_MILLIS)){
+			return;
+		}
+		synchronized(this){
+			if(now - lastGrowTime < TimeUnit.MILLISECONDS.toNanos(GROW_INTERVAL_MILLIS)){
+				return;
+			}
+			lastGrowTime = now;
+			if(addWorker()){
+				grownCount.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * Called by an extra worker that has been idle for the keep-alive time
+	 * @return true if the worker should exit; false if it is needed to keep the pool at its core size
+	 */
+	boolean retire(Worker worker){
+		int size;
+		do{
+			size = poolSize.get();
+			if(size <= coreSize){
+				return false;
+			}
+		} while(!poolSize.compareAndSet(size, size - 1));
+		workers.compareAndSet(worker.getId(), worker, null);
+		retiredCount.incrementAndGet();
+		
+		// Tasks dispatched to the worker as it retired go to the shared queue instead
+		WorkDeque<Task> deque = worker.getDeque();
+		deque.close();
+		Task task;
+		boolean moved = false;
+		while((task = deque.poll()) != null){
+			while(!taskQueue.offer(task)){
+				// can't stay full: the queues hold no more than its capacity between them
+				Thread.yield();
+			}
+			moved = true;
+		}
+		if(moved){
+			wakeWorker();
+		}
+		return true;
+	}
+	
+	long getKeepAliveNanos(){
+		return keepAliveNanos;
 	}
 	
 	/**
 	 * Submits a Task for execution in the thread pool. Tasks are executed in FIFO order as worker threads become available
 	 * @param task The Task to be executed by the thread pool
+	 * @return false if the queue was full or the pool is shutting down, and the Task was rejected
 	 */
-	public synchronized void addTask(Task task){
-		taskQueue.offer(task);
-		
-		if(taskQueue.size()>0){
-			assignTasks();
+	public boolean addTask(Task task){
+		int result = offer(task, System.nanoTime());
+		if(result == REJECTED){
+			return false;
 		}
+		if(mode == ExecutorMode.POOL){
+			signal(result == QUEUED ? 1 : 0);
+		}
+		return true;
 	}
 	
-	private synchronized void assignTasks(){
-		// need to implement this method (does this actually need to be sychronized?)
-		// if there is an available worker
-		if(workerQueue.size() > 0 ){
-			// assign the first worker in the workerQueue the first task in the taskQueue
-			// remove the worker from the workerQueue and the task from the taskQueue
-			
-			//get first worker from queue (and remove it)
-			Worker currWorker = workerQueue.remove();
-			Task currTask = taskQueue.remove();
-			currWorker.assign(currTask);
-			
+	/**
+	 * Submits several Tasks at once (e.g. everything read in one select cycle), waking only
+	 * as many workers as it takes to pull them in batches
+	 * @param tasks - executed in the collection's iteration order
+	 * @return number of Tasks accepted; the others were rejected as by addTask
+	 */
+	public int addTasks(Collection<Task> tasks){
+		int accepted = 0;
+		int unattended = 0;
+		long now = System.nanoTime();
+		for(Task task:tasks){
+			int result = offer(task, now);
+			if(result != REJECTED){
+				accepted++;
+			}
+			if(result == QUEUED){
+				unattended++;
+			}
+		}
+		if(mode == ExecutorMode.POOL && accepted > 0){
+			signal(unattended);
 		}
-		 
+		return accepted;
 	}
 	
+	// results of offer
+	private static final int REJECTED = -1;
+	// queued where no worker has been woken for it
+	private static final int QUEUED = 0;
+	// queued for a worker that has been woken, run (VIRTUAL and INLINE modes),
+	// or held behind an earlier Task of its connection (KEYED ordering)
+	private static final int TAKEN = 1;
+	
 	/**
-	 * Called by worker threads when their Task has completed
-	 * @param worker
+	 * Queue a Task (in VIRTUAL or INLINE mode, run it), applying the overflow policy if the queues are full
+	 * @return REJECTED, QUEUED or TAKEN
 	 */
-	public synchronized void workerFinished(Worker worker){
-		workerQueue.offer(worker);
+	private int offer(Task task, long now){
+		if(shutdown){
+			abandonedCount.incrementAndGet();
+			server.reject(task);
+			return REJECTED;
+		}
+		task.setQueuedTime(now);
+		if(task.getReadTime() != 0){
+			server.getStats().getReadToEnqueue().record(now - task.getReadTime());
+		}
+		if(mode == ExecutorMode.VIRTUAL){
+			return execute(task) ? TAKEN : REJECTED;
+		}
+		if(mode == ExecutorMode.INLINE){
+			taskWorker(task).process(task);
+			return TAKEN;
+		}
+		long parkNanos = MIN_BLOCK_PARK_NANOS;
+		while(!reserve()){
+			// queues are full
+			if(shutdown){
+				// the workers may already be gone, don't wait for them
+				abandonedCount.incrementAndGet();
+				server.reject(task);
+				return REJECTED;
+			}
+			if(overflowPolicy == OverflowPolicy.REJECT){
+				server.reject(task);
+				return REJECTED;
+			}
+			if(overflowPolicy == OverflowPolicy.DROP_OLDEST){
+				Task oldest = pollOldest();
+				if(oldest == null){
+					// everything queued is held back by KEYED ordering, or reserved and not yet
+					// dispatched: there is nothing to drop, so reject like REJECT rather than spin
+					server.reject(task);
+					return REJECTED;
+				}
+				rejectQueued(oldest);
+			}
+			else{
+				// wait for the workers to catch up (part of a batch may be queued with nobody woken yet)
+				wakeWorker();
+				LockSupport.parkNanos(this, parkNanos);
+				parkNanos = Math.min(parkNanos * 2, MAX_BLOCK_PARK_NANOS);
+			}
+		}
+		if(ordering == OrderingMode.KEYED && !keyedTasks.start(task)){
+			// queued behind an earlier Task of its connection, it is dispatched once that one finishes
+			return TAKEN;
+		}
+		return dispatch(task) ? TAKEN : QUEUED;
+	}
+	
+	/**
+	 * Answer a Task taken off the queues with an error response; in KEYED ordering
+	 * the Task waiting behind it is queued in its place
+	 */
+	private void rejectQueued(Task task){
+		waitingCount.decrementAndGet();
+		queuedCount.decrementAndGet();
+		server.reject(task);
+		if(ordering == OrderingMode.KEYED){
+			Task next = keyedTasks.finish(task);
+			if(next != null){
+				dispatchHeld(next);
+			}
+		}
+	}
+	
+	/**
+	 * Claim room for one more Task in the queues
+	 * @return false if they are full
+	 */
+	private boolean reserve(){
+		int queued;
+		do{
+			queued = queuedCount.get();
+			if(queued >= taskQueue.capacity()){
+				return false;
+			}
+		} while(!queuedCount.compareAndSet(queued, queued + 1));
+		return true;
+	}
+	
+	/**
+	 * Add a Task (with room reserved for it) to the deque of the worker its connection is assigned to,
+	 * or to the shared queue if that worker isn't running
+	 * @return true if the worker was idle and has been woken for it
+	 */
+	private boolean dispatch(Task task){
+		// counted before any worker can see it, so a worker about to park never misses it
+		waitingCount.incrementAndGet();
+		Worker worker = assignedWorker(task);
+		if(worker != null && worker.getDeque().offer(task)){
+			return worker.wake();
+		}
+		while(!taskQueue.offer(task)){
+			// can't stay full: the queues hold no more than its capacity between them
+			Thread.yield();
+		}
+		return false;
+	}
+	
+	/**
+	 * Dispatch a Task KEYED ordering held back, now that the Task ahead of it has finished
+	 * (its room was reserved when it was submitted). Idle workers park while only held back
+	 * Tasks are queued, so one is woken if the Task lands in the shared queue
+	 */
+	private void dispatchHeld(Task task){
+		if(!dispatch(task) && assignedWorker(task) == null){
+			wakeWorker();
+		}
+	}
+	
+	/**
+	 * @return the worker a Task's connection is assigned to, or null if that worker isn't running
+	 */
+	private Worker assignedWorker(Task task){
+		int key = task.getConnection().getClient().getId() & Integer.MAX_VALUE;
+		return workers.get(key % workers.length());
+	}
+	
+	/**
+	 * Take a Task off the head of the shared queue, or failing that of a worker's deque
+	 * @return the Task, or null if nothing is queued
+	 */
+	private Task pollOldest(){
+		Task task = taskQueue.poll();
+		for(int i=0; task == null && i<workers.length(); i++){
+			Worker worker = workers.get(i);
+			if(worker != null){
+				task = worker.getDeque().poll();
+			}
+		}
+		return task;
+	}
+	
+	/**
+	 * Called once Tasks have been queued: update saturation, wake one worker per batch's worth
+	 * of new Tasks that no worker was woken for (a woken worker that leaves Tasks waiting wakes another,
+	 * see nextTasks), and grow the pool if none was idle and work is backing up
+	 * @param unattended - number of Tasks just queued that no worker was woken for
+	 */
+	private void signal(int unattended){
+		int queued = queuedCount.get();
+		if(queued >= highWater){
+			saturated.set(true);
+		}
+		int wakeups = (unattended + workerBatchSize - 1) / workerBatchSize;
+		for(int i=0; i<wakeups; i++){
+			if(!wakeWorker()){
+				if(queued >= growQueueDepth){
+					// every worker is busy and work is backing up
+					grow();
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * addTask for VIRTUAL mode: start the Task on its own thread
+	 */
+	private boolean execute(Task task){
+		while(inFlight.get() >= taskQueue.capacity()){
+			// as many Tasks in flight as the queue would hold
+			if(shutdown || overflowPolicy != OverflowPolicy.BLOCK){
+				// nothing is queued, so DROP_OLDEST has nothing to drop and rejects like REJECT
+				if(shutdown){
+					abandonedCount.incrementAndGet();
+				}
+				server.reject(task);
+				return false;
+			}
+			Thread.yield();
+		}
+		if(inFlight.incrementAndGet() >= highWater){
+			saturated.set(true);
+		}
+		if(ordering == OrderingMode.KEYED && !keyedTasks.start(task)){
+			// started once the earlier Task of its connection finishes
+			return true;
+		}
+		return run(task);
+	}
+	
+	/**
+	 * Start a Task counted in flight on its own thread (VIRTUAL mode)
+	 * @return false if the executor has shut down and the Task was abandoned
+	 */
+	private boolean run(Task task){
+		try {
+			taskExecutor.execute(new TaskRunner(task));
+		} catch (RejectedExecutionException e) {
+			// shut down after the check above
+			abandonRun(task);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Answer a Task that was counted in flight but will never run (VIRTUAL mode) with an error
+	 * response; in KEYED ordering, likewise every Task waiting behind it
+	 */
+	private void abandonRun(Task task){
+		while(task != null){
+			taskFinished();
+			abandonedCount.incrementAndGet();
+			server.reject(task);
+			task = ordering == OrderingMode.KEYED ? keyedTasks.finish(task) : null;
+		}
+	}
+	
+	/**
+	 * Runs one Task in VIRTUAL mode
+	 */
+	private class TaskRunner implements Runnable {
+		private Task task;
+		
+		TaskRunner(Task task){
+			this.task = task;
+		}
 		
-		if(taskQueue.size() > 0){
-			assignTasks();
+		public void run(){
+			server.getStats().getQueueWait().record(System.nanoTime() - task.getQueuedTime());
+			try {
+				taskWorker(task).process(task);
+			} finally {
+				taskFinished();
+				if(ordering == OrderingMode.KEYED){
+					Task next = keyedTasks.finish(task);
+					if(next != null){
+						ThreadPoolManager.this.run(next);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the task worker of the reactor that read the Task (VIRTUAL and INLINE modes)
+	 */
+	private Worker taskWorker(Task task){
+		return taskWorkers[task.getConnection().getReactor().getId()];
+	}
+	
+	private void taskFinished(){
+		int remaining = inFlight.decrementAndGet();
+		if(saturated.get() && remaining <= lowWater && saturated.compareAndSet(true, false)){
+			server.poolDrained();
+		}
+	}
+	
+	private void wakeAll(){
+		for(int i=0; i<workers.length(); i++){
+			Worker worker = workers.get(i);
+			if(worker != null){
+				worker.wake();
+			}
+		}
+	}
+	
+	/**
+	 * Wake up one idle worker (if there is one) so it can pull the new Task
+	 * @return false if no worker was idle
+	 */
+	private boolean wakeWorker(){
+		int start = nextWorker.getAndIncrement() & Integer.MAX_VALUE;
+		int slots = workers.length();
+		for(int i=0; i<slots; i++){
+			Worker worker = workers.get((start + i) % slots);
+			if(worker != null && worker.wake()){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Called by worker threads to pull their next Tasks: from the head of the worker's own deque,
+	 * else the shared queue, else stolen from another worker's deque. A worker takes at most its
+	 * share of what is queued and, if that leaves Tasks waiting, wakes another idle worker to take
+	 * the next share, so under light load Tasks still spread over the idle workers
+	 * @param worker - the calling worker
+	 * @param batch - filled from the start with the Tasks pulled, oldest first
+	 * @return number of Tasks pulled, 0 if there is no work
+	 */
+	int nextTasks(Worker worker, Task[] batch){
+		int share = Math.min(batch.length, 1 + waitingCount.get() / Math.max(1, poolSize.get()));
+		int count = worker.getDeque().poll(batch, 0, share);
+		Task task;
+		while(count < share && (task = taskQueue.poll()) != null){
+			batch[count++] = task;
+		}
+		if(count == 0){
+			count = steal(worker, batch, share);
+		}
+		if(count == 0){
+			return 0;
+		}
+		if(waitingCount.addAndGet(-count) > 0){
+			// signal only woke enough workers for full batches; pass the wakeup on for the rest
+			wakeWorker();
+		}
+		if(ordering == OrderingMode.KEYED){
+			// fill the rest of the batch with the Tasks waiting behind the ones pulled,
+			// so a busy connection's packets are still hashed and sent in batches
+			int pulled = count;
+			for(int i=0; i<pulled && count < batch.length; i++){
+				count += keyedTasks.takeWaiting(batch[i], batch, count, batch.length - count);
+			}
+		}
+		if(queuedCount.addAndGet(-count) == 0 && shutdown){
+			// the workers still waiting for Tasks held back by KEYED ordering can exit
+			wakeAll();
 		}
+		LatencyHistogram queueWait = server.getStats().getQueueWait();
+		long now = System.nanoTime();
+		for(int i=0; i<count; i++){
+			queueWait.record(now - batch[i].getQueuedTime());
+		}
+		if(saturated.get() && queuedCount.get() <= lowWater && saturated.compareAndSet(true, false)){
+			// let the server start reading again
+			server.poolDrained();
+		}
+		if(now - batch[0].getQueuedTime() > growWaitNanos){
+			// Tasks are waiting too long for a worker
+			grow();
+		}
+		return count;
+	}
+	
+	/**
+	 * Take Tasks from the tail of another worker's deque, starting the search at a random worker
+	 * so thieves don't all pick on the same one
+	 * @return number of Tasks stolen into batch, oldest first
+	 */
+	private int steal(Worker thief, Task[] batch, int max){
+		int slots = workers.length();
+		int start = ThreadLocalRandom.current().nextInt(slots);
+		for(int i=0; i<slots; i++){
+			Worker victim = workers.get((start + i) % slots);
+			if(victim == null || victim == thief || victim.getDeque().isEmpty()){
+				continue;
+			}
+			int count = victim.getDeque().steal(batch, 0, max);
+			if(count > 0){
+				stolenCount.add(count);
+				return count;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return true if Tasks are waiting for a worker (not counting those KEYED ordering holds back)
+	 */
+	boolean hasTasks(){
+		return waitingCount.get() > 0;
+	}
+	
+	/**
+	 * @return true if no Task is queued, including those KEYED ordering holds back
+	 */
+	boolean isDrained(){
+		return queuedCount.get() == 0;
 	}
 	
 	public Server getServer(){
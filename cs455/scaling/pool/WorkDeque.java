@@ -0,0 +1,95 @@
+package cs455.scaling.pool;
+
+import java.util.ArrayDeque;
+
+/**
+ * A worker's own queue of work. The dispatcher adds to the tail and the owning worker
+ * takes from the head (oldest first); an idle worker may steal from the tail (newest first),
+ * so work that piled up behind a busy worker is shared out. Guarded by a lock, which is
+ * only contended when a thief and the owner or dispatcher meet on the same deque
+ * @author Owner Theresa Wellington
+ *
+ * @param <E> type of element held in the deque
+ */
+public class WorkDeque<E> {
+
+	private final ArrayDeque<E> elements = new ArrayDeque<E>();
+	// number of elements, readable without the lock (so thieves can skip empty deques cheaply)
+	private volatile int size = 0;
+	// set once the owner has gone; nothing more may be added
+	private boolean closed = false;
+
+	/**
+	 * Adds an element to the tail of the deque
+	 * @param element
+	 * @return false if the deque is closed
+	 */
+	public synchronized boolean offer(E element){
+		if(closed){
+			return false;
+		}
+		elements.addLast(element);
+		size = elements.size();
+		return true;
+	}
+
+	/**
+	 * Removes the element at the head of the deque
+	 * @return the element, or null if the deque is empty
+	 */
+	public synchronized E poll(){
+		E element = elements.pollFirst();
+		size = elements.size();
+		return element;
+	}
+
+	/**
+	 * Removes elements from the head of the deque (the owner's end)
+	 * @param into - filled from offset, oldest first
+	 * @param max - most elements to take
+	 * @return number of elements taken
+	 */
+	public synchronized int poll(E[] into, int offset, int max){
+		int count = 0;
+		E element;
+		while(count < max && (element = elements.pollFirst()) != null){
+			into[offset + count++] = element;
+		}
+		size = elements.size();
+		return count;
+	}
+
+	/**
+	 * Removes up to half the elements from the tail of the deque (the thief's end)
+	 * @param into - filled from offset, oldest first
+	 * @param max - most elements to take
+	 * @return number of elements taken
+	 */
+	public synchronized int steal(E[] into, int offset, int max){
+		int count = Math.min(max, (elements.size() + 1) / 2);
+		for(int i=count - 1; i>=0; i--){
+			into[offset + i] = elements.pollLast();
+		}
+		size = elements.size();
+		return count;
+	}
+
+	/**
+	 * Refuse any further elements; those already in the deque can still be polled
+	 */
+	public synchronized void close(){
+		closed = true;
+	}
+
+	/**
+	 * @return approximate number of elements in the deque
+	 */
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+}
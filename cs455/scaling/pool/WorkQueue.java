@@ -0,0 +1,128 @@
+package cs455.scaling.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer/multi-consumer FIFO queue backed by a ring buffer.
+ * Producers and consumers claim slots with a compare-and-set on their own counter
+ * and never take a lock, so the selector submitting work does not contend with
+ * workers pulling it (except when they race for the very same slot)
+ * @author Owner Theresa Wellington
+ *
+ * @param <E> type of element held in the queue
+ */
+public class WorkQueue<E> {
+	
+	private final int mask;
+	private final Object[] buffer;
+	// sequence number for each slot: tells producers/consumers whether the slot is free or full
+	private final AtomicLongArray sequences;
+	// next position to dequeue from
+	private final AtomicLong head = new AtomicLong();
+	// next position to enqueue into
+	private final AtomicLong tail = new AtomicLong();
+	
+	/**
+	 * Creates a new WorkQueue
+	 * @param capacity - maximum number of elements, rounded up to a power of two
+	 */
+	public WorkQueue(int capacity){
+		if(capacity < 1){
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity){
+			size <<= 1;
+		}
+		mask = size - 1;
+		buffer = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for(int i=0; i<size; i++){
+			sequences.set(i, i);
+		}
+	}
+	
+	/**
+	 * Adds an element to the tail of the queue
+	 * @param element
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E element){
+		long pos = tail.get();
+		while(true){
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - pos;
+			if(diff == 0){
+				// slot is free, try to claim it
+				if(tail.compareAndSet(pos, pos + 1)){
+					buffer[index] = element;
+					// publish the element to consumers
+					sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			}
+			else if(diff < 0){
+				// slot still holds an element from the previous lap: queue is full
+				return false;
+			}
+			else{
+				// another producer got here first
+				pos = tail.get();
+			}
+		}
+	}
+	
+	/**
+	 * Removes the element at the head of the queue
+	 * @return the element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll(){
+		long pos = head.get();
+		while(true){
+			int index = (int) (pos & mask);
+			long diff = sequences.get(index) - (pos + 1);
+			if(diff == 0){
+				// slot is full, try to claim it
+				if(head.compareAndSet(pos, pos + 1)){
+					E element = (E) buffer[index];
+					buffer[index] = null;
+					// hand the slot back to producers for the next lap
+					sequences.set(index, pos + mask + 1);
+					return element;
+				}
+				pos = head.get();
+			}
+			else if(diff < 0){
+				// nothing has been published in this slot yet: queue is empty
+				return null;
+			}
+			else{
+				// another consumer got here first
+				pos = head.get();
+			}
+		}
+	}
+	
+	/**
+	 * @return approximate number of elements in the queue
+	 */
+	public int size(){
+		long size = tail.get() - head.get();
+		if(size < 0){
+			return 0;
+		}
+		return (int) Math.min(size, capacity());
+	}
+	
+	public boolean isEmpty(){
+		return tail.get() == head.get();
+	}
+	
+	public int capacity(){
+		return mask + 1;
+	}
+
+}
@@ -1,11 +1,14 @@
 package cs455.scaling.pool;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
-import cs455.scaling.server.MessageInfo;
-import cs455.scaling.util.SHA1;
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.HashCache;
+import cs455.scaling.util.PooledBuffer;
 
 
 /**
@@ -17,7 +20,20 @@ public class Worker implements Runnable {
 	
 	private ThreadPoolManager manager;
 	private int id;
-	private List<Task> queue = new LinkedList<Task>();
+	
+	// set while the worker is parked waiting for work; cleared by whoever wakes it
+	private AtomicBoolean idle = new AtomicBoolean(false);
+	private Thread thread;
+	
+	// set by stop(); the worker exits after the Tasks it is working on
+	private volatile boolean stopped = false;
+	
+	// Tasks dispatched to this worker (other workers may steal from it)
+	private WorkDeque<Task> deque = new WorkDeque<Task>();
+	
+	// the Tasks pulled from the queue in one go, and their responses
+	private Task[] batch;
+	private PooledBuffer[] results;
 	
 	/**
 	 * Creates a new Worker object
@@ -27,66 +43,205 @@ public class Worker implements Runnable {
 	public Worker(ThreadPoolManager poolManager, int idNumber){
 		manager = poolManager;
 		id = idNumber;
+		batch = new Task[poolManager.getWorkerBatchSize()];
+		results = new PooledBuffer[batch.length];
 	}
 	
 
+	/**
+	 * Start this worker on its own thread
+	 */
+	void start(){
+		thread = new Thread(this, "worker-" + id);
+		thread.start();
+	}
+
 	@Override
 	public void run() {
-		Task task;
-	    
-	    while(true) {
-	      // Wait for data to become available
-	      synchronized(queue) {
-	        while(queue.isEmpty()) {
-	          try {
-	            queue.wait();
-	          } catch (InterruptedException e) {
-	          }
+	    while(!stopped) {
+	      // Pull the next tasks from this worker's deque, or the pool's shared queue, or another worker
+	      int count = manager.nextTasks(this, batch);
+	      if(count == 0) {
+	        if(!waitForTask()) {
+	          // retired, or the pool is shutting down and the queue is empty
+	          return;
 	        }
-	        task = queue.remove(0);
+	        continue;
 	      }
 	      
-	      
-	      // Return to sender
-	      manager.getServer().send(task.getSocketChannel(), task.getArray());
-	      manager.workerFinished(this);
+	      process(count);
 	    }
 	  }
+	
+	/**
+	 * Hash the first count Tasks of the batch, then send the responses back with
+	 * one send per run of Tasks for the same connection
+	 */
+	private void process(int count){
+		for(int i=0; i<count; i++){
+			results[i] = hash(batch[i]);
+		}
+		int start = 0;
+		for(int i=1; i<=count; i++){
+			if(i == count || batch[i].getConnection() != batch[start].getConnection()){
+				manager.getServer().send(batch[start].getConnection(), results, start, i - start);
+				start = i;
+			}
+		}
+		manager.tasksCompleted(batch, count);
+		Arrays.fill(batch, 0, count, null);
+		Arrays.fill(results, 0, count, null);
+	}
+	
+	/**
+	 * Hash a Task's payload on the calling thread and send the result back
+	 * @param task
+	 */
+	void process(Task task){
+		// Hash the payload on this worker thread
+		PooledBuffer hashed = hash(task);
 		
+		// Return to sender
+		manager.getServer().send(task.getConnection(), hashed);
+		manager.tasksCompleted(1);
+	}
 	
+	/**
+	 * Park until the pool manager has work for this worker
+	 * @return false if the worker should exit instead: it has retired, or the pool is shutting down and has no work left
+	 */
+	private boolean waitForTask(){
+		idle.set(true);
+		// a task may have been queued before we were marked idle, check again before parking
+		if(manager.hasTasks() && idle.compareAndSet(true, false)){
+			return true;
+		}
+		if(stopped || manager.isShutdown() && manager.isDrained()){
+			// the queue is drained, nothing more will arrive
+			idle.set(false);
+			return false;
+		}
+		long deadline = System.nanoTime() + manager.getKeepAliveNanos();
+		while(idle.get() && !stopped){
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0){
+				// nobody woke us in time; claim our own wakeup, then retire unless there's work
+				// or the pool needs us to stay at its core size
+				if(idle.compareAndSet(true, false)){
+					if(manager.hasTasks() || !manager.retire(this)){
+						return true;
+					}
+					return false;
+				}
+				break;
+			}
+			LockSupport.parkNanos(this, remaining);
+		}
+		return true;
+	}
 	
+	/**
+	 * Wake this worker if it is waiting for work
+	 * @return true if the worker was idle and has been woken
+	 */
+	boolean wake(){
+		if(idle.get() && idle.compareAndSet(true, false)){
+			LockSupport.unpark(thread);
+			return true;
+		}
+		return false;
+	}
+		
+	
+	
+	public int getId(){
+		return id;
+	}
+	
+	WorkDeque<Task> getDeque(){
+		return deque;
+	}
+	
+	/**
+	 * Stop once the Task being worked on (if any) is done, leaving anything still queued
+	 */
 	public void stop(){
+		stopped = true;
+		LockSupport.unpark(thread);
+	}
 	
-		//need to actually stop threads?
-		
+	/**
+	 * Wait for the worker's thread to exit
+	 * @param millis - longest to wait, 0 to wait forever
+	 * @return true if the thread has exited
+	 */
+	boolean join(long millis){
+		try {
+			thread.join(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return !thread.isAlive();
 	}
 	
 	/**
-	 * Create a hash for the task's data, then create a new task to send the hash value back to the client
-	 * @param task - the assigned task
+	 * Hash a payload. In VIRTUAL mode this runs on a new thread per Task, which
+	 * borrows the hash's state from a pool instead of creating its own
 	 */
-	public void assign(Task task){
-		String hashed = SHA1.SHA1FromBytes(task.getArray());
-
-		byte [] hashedBytes = new byte[hashed.getBytes().length];
-		addMessageInfo(task, hashed);
-	    System.arraycopy(hashed.getBytes(), 0, hashedBytes, 0, hashed.getBytes().length);
-	    synchronized(queue) {
-	      queue.add(new Task(task.getSocketChannel(), hashedBytes, hashedBytes.length));
-	      queue.notify();
-	    }
+	private void digest(DigestAlgorithm algorithm, ByteBuffer payload, ByteBuffer out){
+		if(manager.getExecutorMode() == ExecutorMode.VIRTUAL){
+			algorithm.getDigest().digestPooled(payload, out);
+		}
+		else{
+			algorithm.getDigest().digest(payload, out);
+		}
 	}
 	
 	/**
-	 * Add messageInfo to the server's queue (for use in printing stats)
-	 * @param task
-	 * @param hash
+	 * Hash a payload, using the cached digest if it has been seen before
+	 * @param cache
+	 * @param algorithm
+	 * @param payload - position left unchanged, as by Digest.digest
+	 * @param out - receives the digest
 	 */
-	private void addMessageInfo(Task task, String hash){
-		String client = task.getSocketChannel().socket().getInetAddress().getHostName();
-		MessageInfo message = new MessageInfo(client, hash, id);
-		manager.getServer().addHandledMessage(message);
+	private void digestCached(HashCache cache, DigestAlgorithm algorithm, ByteBuffer payload, ByteBuffer out){
+		long fingerprint = HashCache.fingerprint(payload, algorithm);
+		if(cache.get(fingerprint, algorithm, payload, out)){
+			manager.getServer().getStats().hashCacheHit();
+			return;
+		}
+		manager.getServer().getStats().hashCacheMiss();
+		int digestStart = out.position();
+		digest(algorithm, payload, out);
+		ByteBuffer digest = out.duplicate();
+		digest.limit(digest.position()).position(digestStart);
+		cache.put(fingerprint, algorithm, payload, digest);
 	}
 	
+	/**
+	 * Create a hash for the task's data, with the algorithm its connection asked for, and record it for the server's stats
+	 * @param task - the task whose payload should be hashed
+	 * @return the binary digest to send back to the client, in a buffer borrowed from the server's pool
+	 */
+	private PooledBuffer hash(Task task){
+		DigestAlgorithm algorithm = task.getDigestAlgorithm();
+		PooledBuffer hashed = manager.getServer().getBufferPool().acquire(algorithm.getLength());
+		long start = System.nanoTime();
+		HashCache cache = manager.getServer().getHashCache();
+		if(cache == null || !algorithm.isCacheable()){
+			digest(algorithm, task.getPayload(), hashed.getBuffer());
+		}
+		else{
+			digestCached(cache, algorithm, task.getPayload(), hashed.getBuffer());
+		}
+		manager.getServer().getStats().getHashTime().record(System.nanoTime() - start);
+		hashed.getBuffer().flip();
+		hashed.setSequence(task.getSequence());
+		task.release();
+		manager.getServer().getStats().packetHashed(task.getConnection().getClient().getId(), hashed.getBuffer(), id);
+		return hashed;
+	}
+
+	
 
 }
@@ -0,0 +1,49 @@
+package cs455.scaling.server;
+
+import java.net.InetAddress;
+
+/**
+ * What the server knows about one connected client: an id (used in place of the channel
+ * wherever the client is recorded, e.g. sampled messages), its address and a display name
+ * @author Owner Theresa Wellington
+ *
+ */
+public class ClientInfo {
+	
+	private int id;
+	private InetAddress address;
+	// the address until the reverse lookup finishes, then the host name up to its first dot
+	private volatile String displayName;
+	
+	public ClientInfo(int id, InetAddress address){
+		this.id = id;
+		this.address = address;
+		displayName = address.getHostAddress();
+	}
+	
+	public int getId(){
+		return id;
+	}
+	
+	public InetAddress getAddress(){
+		return address;
+	}
+	
+	public String getDisplayName(){
+		return displayName;
+	}
+	
+	/**
+	 * Look up the client's host name (may block on DNS, so it's never called on the hot path)
+	 */
+	void resolve(){
+		String host = address.getHostName();
+		if(host.equals(address.getHostAddress())){
+			// no name for this address
+			return;
+		}
+		int end = host.indexOf('.');
+		displayName = end < 0 ? host : host.substring(0,end);
+	}
+
+}
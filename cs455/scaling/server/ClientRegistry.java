@@ -0,0 +1,78 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connected clients, by id. A client is registered when its connection is accepted;
+ * its host name is looked up once, on a background thread, so a slow resolver
+ * never holds up accepting, reading or hashing
+ * @author Owner Theresa Wellington
+ *
+ */
+public class ClientRegistry {
+	
+	private ConcurrentHashMap<Integer, ClientInfo> clients = new ConcurrentHashMap<Integer, ClientInfo>();
+	private AtomicInteger nextId = new AtomicInteger();
+	
+	private ExecutorService resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "resolver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	/**
+	 * Record a newly accepted client and start looking up its host name
+	 * @param socketChannel
+	 * @return the client, or null if it had already disconnected (the channel is closed and nothing is recorded)
+	 * @throws IOException
+	 */
+	public ClientInfo register(SocketChannel socketChannel) throws IOException {
+		InetSocketAddress remote = (InetSocketAddress) socketChannel.socket().getRemoteSocketAddress();
+		if(remote == null){
+			// reset between accept and here, there's no address to record
+			socketChannel.close();
+			return null;
+		}
+		final ClientInfo client = new ClientInfo(nextId.getAndIncrement(), remote.getAddress());
+		clients.put(client.getId(), client);
+		resolver.execute(new Runnable() {
+			public void run() {
+				client.resolve();
+			}
+		});
+		return client;
+	}
+	
+	/**
+	 * Forget a client whose connection has closed
+	 * @param client
+	 */
+	public void remove(ClientInfo client){
+		clients.remove(client.getId());
+	}
+	
+	/**
+	 * @param id
+	 * @return the client, or null if its connection has closed
+	 */
+	public ClientInfo get(int id){
+		return clients.get(id);
+	}
+	
+	/**
+	 * @return number of clients currently connected
+	 */
+	public int size(){
+		return clients.size();
+	}
+
+}
@@ -0,0 +1,380 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cs455.scaling.util.BufferPool;
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.Frame;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.PooledBuffer;
+
+/**
+ * Per-connection state, attached to the connection's SelectionKey.
+ * Accumulates the bytes read from the channel into complete frames
+ * (see cs455.scaling.util.Frame), however the stream was split up by the reads,
+ * and queues the responses waiting to be written back on the channel.
+ * Packets are numbered as they are read and may be hashed out of order (on different workers);
+ * a response that is ready before an earlier packet's is held back, so responses are always
+ * written in the order the packets arrived.
+ * Packets are answered with SHA-1 digests unless the connection's handshake asked for another algorithm
+ * @author Owner Theresa Wellington
+ *
+ */
+public class Connection {
+	
+	private SocketChannel socketChannel;
+	private ClientInfo client;
+	private Reactor reactor;
+	private BufferPool bufferPool;
+	
+	// length header of the frame currently being read
+	private ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_SIZE);
+	// payload of the frame currently being read (null until its header is complete)
+	private PooledBuffer payload;
+	// what the connection's packets are answered with (only used by the thread reading from the connection)
+	private DigestAlgorithm digestAlgorithm = DigestAlgorithm.DEFAULT;
+	
+	// responses waiting to be written, oldest first (guarded by this)
+	private ArrayDeque<PooledBuffer> outbound = new ArrayDeque<PooledBuffer>();
+	// reused to hand a batch of responses to a single gathering write
+	private ByteBuffer[] gather;
+	private boolean closed = false;
+	
+	// sequence number of the next packet read (only used by the thread reading from the connection)
+	private long readSequence = 0;
+	// sequence number of the next response to be queued for writing (guarded by this)
+	private long writeSequence = 0;
+	// responses that are ready before an earlier one, at their sequence number modulo the
+	// array's length (a power of two); allocated when first needed (guarded by this)
+	private PooledBuffer[] heldBack;
+	private int heldBackCount = 0;
+	
+	// set when a response is queued on an empty queue; the sender that claims it arranges for the flush
+	private AtomicBoolean flushNeeded = new AtomicBoolean(false);
+	
+	// set while the reactor has been asked to write this connection's responses,
+	// so only the thread that flips it needs to queue an interest change and wake the reactor
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	
+	// when the queued responses must be flushed even if the batch isn't full
+	volatile long flushDeadline;
+	
+	// set while the reactor has stopped reading from this connection (only used by the reactor)
+	boolean readPaused = false;
+	
+	/**
+	 * Creates a new Connection
+	 * @param socketChannel
+	 * @param client - the client's entry in the server's ClientRegistry
+	 * @param reactor - the reactor doing this connection's I/O
+	 * @param bufferPool - pool the frames' payloads are borrowed from
+	 * @param writeBatchSize - most responses written per syscall
+	 */
+	public Connection(SocketChannel socketChannel, ClientInfo client, Reactor reactor, BufferPool bufferPool, int writeBatchSize){
+		this.socketChannel = socketChannel;
+		this.client = client;
+		this.reactor = reactor;
+		this.bufferPool = bufferPool;
+		this.gather = new ByteBuffer[writeBatchSize];
+	}
+	
+	public SocketChannel getSocketChannel(){
+		return socketChannel;
+	}
+	
+	public ClientInfo getClient(){
+		return client;
+	}
+	
+	public Reactor getReactor(){
+		return reactor;
+	}
+	
+	/**
+	 * Consume bytes from data until a frame is complete
+	 * @param data - bytes read from the channel, ready to be read from
+	 * @return the payload of the completed frame (flipped, borrowed from the BufferPool), 
+	 * 			or null if data ran out first
+	 * @throws IOException if the frame header holds an invalid length or an unacceptable handshake
+	 */
+	public PooledBuffer nextFrame(ByteBuffer data) throws IOException {
+		while(payload == null){
+			transfer(data, header);
+			if(header.hasRemaining()){
+				return null;
+			}
+			header.flip();
+			int length = header.getInt();
+			header.clear();
+			if(Frame.isHandshake(length)){
+				handshake(length);
+			}
+			else if(!Frame.isValidLength(length)){
+				throw new IOException("Invalid frame length " + length);
+			}
+			else{
+				payload = bufferPool.acquire(length);
+			}
+		}
+		
+		transfer(data, payload.getBuffer());
+		if(payload.getBuffer().hasRemaining()){
+			return null;
+		}
+		PooledBuffer frame = payload;
+		payload = null;
+		frame.getBuffer().flip();
+		return frame;
+	}
+	
+	/**
+	 * Switch the connection to the digest algorithm a handshake asks for
+	 * @param header - the handshake
+	 * @throws IOException if the algorithm is unknown or packets have already been read
+	 */
+	private void handshake(int header) throws IOException {
+		if(readSequence > 0){
+			throw new IOException("Handshake after the connection's first packet");
+		}
+		DigestAlgorithm requested = Frame.handshakeAlgorithm(header);
+		if(requested == null){
+			throw new IOException("Handshake for an unknown digest algorithm: " + Integer.toHexString(header));
+		}
+		digestAlgorithm = requested;
+	}
+	
+	/**
+	 * @return what the connection's packets are answered with
+	 * 			(called by the thread reading from it, as it creates the packet's Task)
+	 */
+	public DigestAlgorithm getDigestAlgorithm(){
+		return digestAlgorithm;
+	}
+	
+	/**
+	 * @return the sequence number for the next packet read from this connection
+	 * 			(called by the thread reading from it, as it creates the packet's Task)
+	 */
+	public long nextSequence(){
+		return readSequence++;
+	}
+	
+	/**
+	 * Queue a response to be written on this connection, in its packet's place (see PooledBuffer.getSequence).
+	 * May be called from any thread
+	 * @param data - flipped, ready to write; released once it has been written
+	 * @return the number of responses now queued, or 0 if none can be written yet
+	 * 			(the connection is closed and data is released, or data is held back for an earlier response)
+	 */
+	public synchronized int enqueue(PooledBuffer data){
+		if(closed){
+			data.release();
+			return 0;
+		}
+		int before = outbound.size();
+		order(data, System.nanoTime());
+		return queued(before);
+	}
+	
+	/**
+	 * Queue several responses at once, taking the lock once
+	 * @param data - the responses are data[offset] to data[offset + count - 1]
+	 * @return as for enqueue(data)
+	 */
+	public synchronized int enqueue(PooledBuffer[] data, int offset, int count){
+		if(closed){
+			for(int i=offset; i<offset + count; i++){
+				data[i].release();
+			}
+			return 0;
+		}
+		int before = outbound.size();
+		long now = System.nanoTime();
+		for(int i=offset; i<offset + count; i++){
+			order(data[i], now);
+		}
+		return queued(before);
+	}
+	
+	/**
+	 * Add a response to the write queue if it is the next one due, followed by any held back
+	 * responses that were waiting for it; otherwise hold it back
+	 */
+	private void order(PooledBuffer data, long now){
+		long sequence = data.getSequence();
+		if(sequence >= 0 && sequence != writeSequence){
+			holdBack(data, sequence);
+			return;
+		}
+		data.setTimestamp(now);
+		outbound.add(data);
+		if(sequence < 0){
+			// not numbered, it has no place to keep
+			return;
+		}
+		writeSequence++;
+		while(heldBackCount > 0){
+			int slot = (int) writeSequence & (heldBack.length - 1);
+			PooledBuffer next = heldBack[slot];
+			if(next == null){
+				return;
+			}
+			heldBack[slot] = null;
+			heldBackCount--;
+			next.setTimestamp(now);
+			outbound.add(next);
+			writeSequence++;
+		}
+	}
+	
+	private void holdBack(PooledBuffer data, long sequence){
+		long distance = sequence - writeSequence;
+		if(heldBack == null || distance >= heldBack.length){
+			// grow to a power of two that spans every response in flight
+			int length = Integer.highestOneBit((int) Math.max(8, distance)) * 2;
+			PooledBuffer[] grown = new PooledBuffer[length];
+			if(heldBack != null){
+				for(PooledBuffer held:heldBack){
+					if(held != null){
+						grown[(int) held.getSequence() & (length - 1)] = held;
+					}
+				}
+			}
+			heldBack = grown;
+		}
+		heldBack[(int) sequence & (heldBack.length - 1)] = data;
+		heldBackCount++;
+	}
+	
+	/**
+	 * @param before - responses queued before this call
+	 * @return responses now queued, or 0 if none were added
+	 */
+	private int queued(int before){
+		int after = outbound.size();
+		if(after == before){
+			return 0;
+		}
+		if(before == 0){
+			flushNeeded.set(true);
+		}
+		return after;
+	}
+	
+	/**
+	 * Claim the job of arranging for responses queued on an empty queue to be flushed
+	 * @return true if the caller must arrange it; false if another sender has, or it isn't needed
+	 */
+	public boolean claimFlush(){
+		return flushNeeded.get() && flushNeeded.compareAndSet(true, false);
+	}
+	
+	/**
+	 * Claim the job of asking the reactor to write this connection's responses
+	 * @return true if the caller flipped the needs-write flag and must make the request;
+	 * 			false if a write is already scheduled
+	 */
+	public boolean scheduleWrite(){
+		return writeScheduled.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Called by the reactor once flush has emptied the queue
+	 * @return true if responses were queued in the meantime and another write has been scheduled
+	 */
+	public boolean writeDone(){
+		writeScheduled.set(false);
+		return hasOutbound() && scheduleWrite();
+	}
+	
+	public synchronized boolean hasOutbound(){
+		return !outbound.isEmpty();
+	}
+	
+	/**
+	 * Write the queued responses, a batch per gathering write, until they have all
+	 * been written or the socket's buffer fills up
+	 * @param latency - records how long each written response was queued
+	 * @return true if nothing is left to write
+	 * @throws IOException
+	 */
+	public synchronized boolean flush(LatencyHistogram latency) throws IOException {
+		while(!outbound.isEmpty()){
+			int count = 0;
+			long total = 0;
+			for(PooledBuffer buf:outbound){
+				if(count == gather.length){
+					break;
+				}
+				gather[count++] = buf.getBuffer();
+				total += buf.getBuffer().remaining();
+			}
+			
+			long written = socketChannel.write(gather, 0, count);
+			Arrays.fill(gather, 0, count, null);
+			
+			// hand back every response that has been completely written
+			long now = System.nanoTime();
+			while(!outbound.isEmpty() && !outbound.peek().getBuffer().hasRemaining()){
+				PooledBuffer buf = outbound.poll();
+				latency.record(now - buf.getTimestamp());
+				buf.release();
+			}
+			if(written < total){
+				// the socket's buffer is full
+				return false;
+			}
+		}
+		// the next response queued will need a flush of its own
+		flushNeeded.set(false);
+		return true;
+	}
+	
+	/**
+	 * Release any partially read frame, unwritten and held back responses back to the pool
+	 * @return number of responses that were never written
+	 */
+	public int close(){
+		if(payload != null){
+			payload.release();
+			payload = null;
+		}
+		int unsent = 0;
+		synchronized(this){
+			closed = true;
+			PooledBuffer buf;
+			while((buf = outbound.poll()) != null){
+				buf.release();
+				unsent++;
+			}
+			if(heldBack != null){
+				for(int i=0; i<heldBack.length; i++){
+					if(heldBack[i] != null){
+						heldBack[i].release();
+						heldBack[i] = null;
+						unsent++;
+					}
+				}
+				heldBackCount = 0;
+			}
+		}
+		return unsent;
+	}
+	
+	/**
+	 * Copy as many bytes as fit from src to dst
+	 */
+	private static void transfer(ByteBuffer src, ByteBuffer dst){
+		int count = Math.min(src.remaining(), dst.remaining());
+		int limit = src.limit();
+		src.limit(src.position() + count);
+		dst.put(src);
+		src.limit(limit);
+	}
+
+}
@@ -1,21 +1,70 @@
 package cs455.scaling.server;
 
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs455.scaling.util.DigestAlgorithm;
+
 /**
- * Stores information for use while server prints received messages
+ * Stores information for use while server prints received messages.
+ * Instances are the reused slots of ServerStats' sample ring: a version number (odd while a
+ * worker is filling the slot) lets the reporter copy one out without locking
  * @author Owner Theresa Wellington
  *
  */
 public class MessageInfo {
 	
-	public String clientName;
-	public String hash;
+	private AtomicLong version = new AtomicLong();
+	
+	// which sample (counting from 0 since the server started) the slot holds
+	public long index = -1;
+	// id of the client in the server's ClientRegistry
+	public int clientID;
+	public byte[] hash = new byte[DigestAlgorithm.MAX_LENGTH];
+	public int hashLength;
 	public int workerID;
 	
-	public MessageInfo(String client, String hashCode, int id){
-		int end = client.indexOf('.');
-		clientName = client.substring(0,end);
-		hash = hashCode;
-		workerID =id;
+	/**
+	 * Fill the slot. Called by any thread
+	 * @param sample - index of the sample
+	 * @param clientID
+	 * @param hashCode - binary digest (the remaining bytes are copied, the buffer's position is unchanged)
+	 * @param id
+	 * @return false if another thread is filling the slot, in which case the sample is skipped
+	 */
+	boolean write(long sample, int clientID, ByteBuffer hashCode, int id){
+		long v = version.get();
+		if((v & 1) != 0 || !version.compareAndSet(v, v + 1)){
+			return false;
+		}
+		index = sample;
+		this.clientID = clientID;
+		hashLength = Math.min(hashCode.remaining(), hash.length);
+		hashCode.duplicate().get(hash, 0, hashLength);
+		workerID = id;
+		version.set(v + 2);
+		return true;
+	}
+	
+	/**
+	 * Copy the slot (called by the reporter)
+	 * @param copy
+	 * @return false if the slot was being filled while it was copied
+	 */
+	boolean copyTo(MessageInfo copy){
+		long v = version.get();
+		if((v & 1) != 0){
+			return false;
+		}
+		copy.index = index;
+		copy.clientID = clientID;
+		copy.hashLength = hashLength;
+		System.arraycopy(hash, 0, copy.hash, 0, hashLength);
+		copy.workerID = workerID;
+		// the copies above must not move past the second version check
+		VarHandle.acquireFence();
+		return version.get() == v;
 	}
 
 }
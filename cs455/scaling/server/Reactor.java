@@ -0,0 +1,526 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.scaling.pool.Task;
+import cs455.scaling.pool.ThreadPoolManager;
+import cs455.scaling.util.ChangeRequest;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.PooledBuffer;
+
+/**
+ * One of the server's I/O threads. The server's acceptor hands each new connection to one
+ * Reactor, which then does all reading and writing for it on its own Selector.
+ * Other threads talk to a Reactor only through its lock-free change queue
+ * @author Owner Theresa Wellington
+ *
+ */
+public class Reactor implements Runnable {
+	
+	private Server server;
+	private ServerConfig config;
+	private int id;
+	
+	// The selector for this reactor's connections
+	private Selector selector;
+	
+	// The buffer into which we'll read data when it's available
+	// (complete frames are copied out of it into buffers from the server's pool)
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(16*1024);
+	
+	// Changes requested by other threads, applied by this reactor before it selects
+	private Queue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<ChangeRequest>();
+	
+	// set once the selector has been woken, so every other request in the same cycle can skip the syscall
+	private AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	
+	// Connections whose responses are waiting for their flush deadline, oldest first (only used by this reactor)
+	private ArrayDeque<Connection> pendingFlushes = new ArrayDeque<Connection>();
+	
+	// Connections with responses queued by this reactor's own thread, written at the end of the select cycle
+	// (only used by this reactor)
+	private ArrayDeque<Connection> localWrites = new ArrayDeque<Connection>();
+	
+	// Packets read this select cycle, and the keys they were read from (only used by this reactor)
+	private ArrayList<Task> readTasks = new ArrayList<Task>();
+	private ArrayList<SelectionKey> readKeys = new ArrayList<SelectionKey>();
+	
+	// Connections this reactor stopped reading from while the thread pool was saturated (only used by this reactor)
+	private ArrayList<SelectionKey> pausedKeys = new ArrayList<SelectionKey>();
+	
+	private AtomicInteger connectionCount = new AtomicInteger();
+	
+	private volatile Thread thread;
+	
+	// time from a response being queued to it being written
+	private LatencyHistogram flushLatency;
+	
+	// set by stopReading(); no more packets are read from any connection
+	private volatile boolean draining = false;
+	private CountDownLatch readsStopped = new CountDownLatch(1);
+	
+	// set by close(); the reactor writes out every queued response, then closes its connections and exits
+	private volatile boolean closing = false;
+	private volatile long closeDeadline;
+	
+	// responses still queued when connections were closed at shutdown
+	private volatile int unsentCount = 0;
+	
+	public Reactor(Server server, ServerConfig config, int id) throws IOException {
+		this.server = server;
+		this.config = config;
+		this.id = id;
+		this.selector = SelectorProvider.provider().openSelector();
+		this.flushLatency = server.getStats().getEnqueueToFlush();
+	}
+	
+	public int getId(){
+		return id;
+	}
+	
+	/**
+	 * @return number of open connections this reactor is handling
+	 */
+	public int getConnectionCount(){
+		return connectionCount.get();
+	}
+	
+	/**
+	 * Hand a newly accepted (non-blocking) connection to this reactor
+	 * @param socketChannel
+	 * @param client - the client's entry in the server's ClientRegistry
+	 * @return the connection's state, as attached to its selection key
+	 */
+	public Connection register(SocketChannel socketChannel, ClientInfo client){
+		connectionCount.incrementAndGet();
+		Connection connection = new Connection(socketChannel, client, this, server.getBufferPool(), config.getWriteBatchSize());
+		pendingChanges.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ, connection));
+		wakeup();
+		return connection;
+	}
+	
+	/**
+	 * Queue data to be written to a connection, in its packet's place. Responses are coalesced: the reactor
+	 * is only asked to write once a full batch is queued or the oldest response's flush deadline passes
+	 * @param connection
+	 * @param data - flipped, ready to write; released once it has been written
+	 */
+	public void send(Connection connection, PooledBuffer data) {
+		requestWrite(connection, connection.enqueue(data));
+	}
+	
+	/**
+	 * Queue several responses to a connection at once (see send)
+	 * @param connection
+	 * @param data - the responses are data[offset] to data[offset + count - 1]
+	 */
+	public void send(Connection connection, PooledBuffer[] data, int offset, int count) {
+		requestWrite(connection, connection.enqueue(data, offset, count));
+	}
+	
+	/**
+	 * Make sure a write of newly queued responses is on its way
+	 * @param queued - responses now queued on the connection, 0 if none were added
+	 */
+	private void requestWrite(Connection connection, int queued) {
+		if (queued == 0) {
+			// connection is closed, or the response is held back behind an earlier one
+			return;
+		}
+		if (Thread.currentThread() == thread) {
+			// sent by this reactor (hashed inline or rejected): no change request or wakeup needed,
+			// everything queued this cycle is written once the cycle's reads are done
+			if (connection.scheduleWrite()) {
+				localWrites.add(connection);
+			}
+			return;
+		}
+		if (queued >= config.getWriteBatchSize() || config.getFlushDelayMillis() == 0) {
+			// only the first sender to see the batch ready asks for the write
+			if (connection.scheduleWrite()) {
+				// change interest ops set
+				pendingChanges.add(new ChangeRequest(connection.getSocketChannel(), ChangeRequest.CHANGEOPS, SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+				wakeup();
+			}
+		}
+		else if (connection.claimFlush()) {
+			// the queue was empty: flush once the deadline passes
+			connection.flushDeadline = System.currentTimeMillis() + config.getFlushDelayMillis();
+			pendingChanges.add(new ChangeRequest(connection.getSocketChannel(), ChangeRequest.FLUSH, 0, connection));
+			wakeup();
+		}
+		// otherwise a flush is already on its way
+	}
+	
+	/**
+	 * Called once the thread pool is no longer saturated, so paused connections are read from again
+	 */
+	public void resumeReading(){
+		wakeup();
+	}
+	
+	/**
+	 * Stop reading from every connection, for good (first step of a shutdown)
+	 * @param timeoutMillis - longest to wait for the reactor to stop
+	 * @return true once the reactor has stopped reading
+	 */
+	public boolean stopReading(long timeoutMillis){
+		draining = true;
+		wakeup();
+		try {
+			return readsStopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * Write out every queued response, then close all connections and stop the reactor.
+	 * Connections whose responses can't be written by the deadline are closed anyway
+	 * @param deadline - System.currentTimeMillis() to give up flushing at
+	 */
+	public void close(long deadline){
+		closeDeadline = deadline;
+		draining = true;
+		closing = true;
+		wakeup();
+	}
+	
+	/**
+	 * @return number of responses dropped because they couldn't be written before the reactor closed
+	 */
+	public int getUnsentCount(){
+		return unsentCount;
+	}
+	
+	/**
+	 * wake up the selecting thread so it can make required changes
+	 */
+	private void wakeup(){
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+	
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		
+		// Write as much as the socket takes, a batch of responses per syscall
+		boolean flushed;
+		try {
+			flushed = connection.flush(flushLatency);
+		} catch (IOException e) {
+			// The remote forcibly closed the connection, cancel
+			// the selection key and close the channel.
+			close(key);
+			return;
+		}
+		if (flushed && !connection.writeDone()) {
+			// done writing data, switch back to reading
+			setInterest(key, SelectionKey.OP_READ);
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException {
+		
+		SocketChannel socketChannel = (SocketChannel) key.channel();
+		Connection connection = (Connection) key.attachment();
+
+		// Clear out read buffer so it's ready for new data
+		readBuffer.clear();
+
+		// Attempt to read off the channel
+		int numRead;
+		try {
+			numRead = socketChannel.read(readBuffer);
+		} catch (IOException e) {
+			// The remote forcibly closed the connection, cancel
+			// the selection key and close the channel.
+			close(key);
+			return;
+		}
+
+		if (numRead == -1) {
+			// Remote entity shut the socket down cleanly. Do the
+			// same from server end and cancel the channel.
+			close(key);
+			return;
+		}
+
+		// Collect each complete frame for the thread pool; they're handed over together at the end of the select cycle
+		readBuffer.flip();
+		PooledBuffer payload;
+		int frames = 0;
+		long readTime = System.nanoTime();
+		try {
+			while ((payload = connection.nextFrame(readBuffer)) != null) {
+				Task task = new Task(connection, payload);
+				task.setReadTime(readTime);
+				readTasks.add(task);
+				frames++;
+			}
+		} catch (IOException e) {
+			// The client isn't speaking our protocol, drop it
+			System.out.println(e.getMessage());
+			close(key);
+			return;
+		}
+		if (frames > 0) {
+			readKeys.add(key);
+		}
+	}
+	
+	/**
+	 * Hand everything read this select cycle to the thread pool in one batch
+	 */
+	private void submitTasks() {
+		if (readTasks.isEmpty()) {
+			return;
+		}
+		ThreadPoolManager threadPool = server.getThreadPool();
+		server.packetsReceived(threadPool.addTasks(readTasks));
+		readTasks.clear();
+		
+		if (threadPool.isSaturated()) {
+			// the workers are too far behind: stop reading so TCP flow control pushes back on the clients
+			for (SelectionKey key : readKeys) {
+				Connection connection = (Connection) key.attachment();
+				if (key.isValid() && !connection.readPaused) {
+					connection.readPaused = true;
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					pausedKeys.add(key);
+				}
+			}
+		}
+		readKeys.clear();
+	}
+	
+	/**
+	 * Write the responses this reactor queued itself during the select cycle,
+	 * leaving whatever the socket won't take for when it becomes writable
+	 */
+	private void flushLocalWrites() throws IOException {
+		Connection connection;
+		while ((connection = localWrites.poll()) != null) {
+			SelectionKey key = connection.getSocketChannel().keyFor(selector);
+			if (key == null || !key.isValid()) {
+				continue;
+			}
+			boolean flushed;
+			try {
+				flushed = connection.flush(flushLatency);
+			} catch (IOException e) {
+				// the connection is gone; without this the exception would skip the rest of the queue
+				close(key);
+				continue;
+			}
+			if (!flushed || connection.writeDone()) {
+				setInterest(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	/**
+	 * Start reading from the paused connections again
+	 */
+	private void resumeReading(ArrayList<SelectionKey> keys) {
+		for (SelectionKey key : keys) {
+			if (key.isValid()) {
+				((Connection) key.attachment()).readPaused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+		keys.clear();
+	}
+	
+	/**
+	 * Set a connection's interest ops, leaving out reading while the connection is paused
+	 */
+	private void setInterest(SelectionKey key, int ops) {
+		if (((Connection) key.attachment()).readPaused) {
+			ops &= ~SelectionKey.OP_READ;
+		}
+		key.interestOps(ops);
+	}
+	
+	/**
+	 * @return number of responses that were still queued for the connection
+	 */
+	private int close(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		int unsent = 0;
+		if (connection != null) {
+			unsent = connection.close();
+			server.getClients().remove(connection.getClient());
+		}
+		key.cancel();
+		key.channel().close();
+		connectionCount.decrementAndGet();
+		return unsent;
+	}
+	
+	/**
+	 * Take reading out of every connection's interest ops (including connections registered since the last call)
+	 */
+	private void pauseAll() {
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (key.isValid() && !connection.readPaused) {
+				connection.readPaused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		}
+		pausedKeys.clear();
+		readsStopped.countDown();
+	}
+	
+	/**
+	 * Ask to write every connection that has responses queued, ignoring flush deadlines.
+	 * Once none do (or the close deadline passes), close every connection and the selector
+	 * @return true once the reactor is closed
+	 */
+	private boolean finishClose() throws IOException {
+		boolean pending = false;
+		for (SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if (key.isValid() && connection.hasOutbound()) {
+				pending = true;
+				if (connection.scheduleWrite()) {
+					setInterest(key, SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		if (pending && System.currentTimeMillis() < closeDeadline) {
+			return false;
+		}
+		
+		int unsent = 0;
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+			if (key.isValid()) {
+				unsent += close(key);
+			}
+		}
+		unsentCount = unsent;
+		selector.close();
+		return true;
+	}
+	
+	/**
+	 * Apply the changes other threads have requested
+	 */
+	private void processChanges() throws IOException {
+		ChangeRequest change;
+		while ((change = pendingChanges.poll()) != null) {
+			switch (change.type) {
+			case ChangeRequest.REGISTER:
+				change.socket.register(selector, change.ops, change.attachment);
+				break;
+			case ChangeRequest.CHANGEOPS:
+				SelectionKey key = change.socket.keyFor(selector);
+				if (key != null && key.isValid()) {
+					setInterest(key, change.ops);
+				}
+				break;
+			case ChangeRequest.FLUSH:
+				pendingFlushes.add((Connection) change.attachment);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Register interest in writing for every connection whose flush deadline has passed
+	 * @return milliseconds until the next flush deadline, or 0 if no flush is waiting
+	 */
+	private long processFlushes() {
+		long now = System.currentTimeMillis();
+		while (!pendingFlushes.isEmpty()) {
+			Connection connection = pendingFlushes.peek();
+			long wait = connection.flushDeadline - now;
+			if (wait > 0) {
+				return wait;
+			}
+			pendingFlushes.remove();
+			SelectionKey key = connection.getSocketChannel().keyFor(selector);
+			if (key != null && key.isValid() && connection.scheduleWrite()) {
+				setInterest(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+		return 0;
+	}
+	
+	public void run() {
+		thread = Thread.currentThread();
+		while (true) {
+			try {
+				// Process any pending changes
+				processChanges();
+				
+				if (draining) {
+					// shutting down: never read again
+					pauseAll();
+					if (closing && finishClose()) {
+						return;
+					}
+				}
+				// Read from paused connections again once the thread pool has caught up
+				else if (!pausedKeys.isEmpty() && !server.getThreadPool().isSaturated()) {
+					resumeReading(pausedKeys);
+				}
+
+				// Wait for an event one of the registered channels
+				// (or until the next batch of responses is due to be flushed)
+				long timeout = processFlushes();
+				if (closing) {
+					// check back before the close deadline
+					timeout = Math.max(1, Math.min(timeout > 0 ? timeout : Long.MAX_VALUE, closeDeadline - System.currentTimeMillis()));
+				}
+				if (timeout > 0) {
+					selector.select(timeout);
+				} else {
+					selector.select();
+				}
+				wakeupPending.set(false);
+
+				// Iterate over the set of keys for which events are available
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					// Check what event is available and deal with it
+					if (key.isReadable()) {
+						read(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(key);
+					}
+				}
+				submitTasks();
+				flushLocalWrites();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -34,38 +34,62 @@ public class Server implements Runnable {
 	private String hostName;
 	private InetAddress hostAddress;
 	private ThreadPoolManager threadPool;
-	private int packetCount;
 	private Long startTime;
 	private int clientCount;
-	private Queue<MessageInfo> handledMessages = new LinkedList<MessageInfo>();
+	private ServerConfig config;
+	private ServerStats stats;
+	private ClientRegistry clients = new ClientRegistry();
 	
 
 	// The channel on which we'll accept connections
 	private ServerSocketChannel serverChannel;
 
-	// The selector we'll be monitoring
+	// The selector we'll be monitoring for new connections
 	private Selector selector;
-
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer readBuffer = ByteBuffer.allocate(8);
-
-	// A list of PendingChange instances
-	private List<ChangeRequest> pendingChanges = new LinkedList<ChangeRequest>();
-
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
 	
+	// The I/O threads accepted connections are handed to
+	private Reactor[] reactors;
+	private volatile Thread[] reactorThreads;
+	private int nextReactor = 0;
+	
+	// cleared by shutdown() to stop the accept loop
+	private volatile boolean running = true;
+	private Thread acceptThread;
 	
-	//instance variables for printing every 60 seconds
+	// Pool of buffers for packet payloads waiting to be hashed and responses waiting to be written
+	private BufferPool bufferPool = new BufferPool(1024);
+	// digests of payloads seen before, null if the cache is off
+	private HashCache hashCache;
+	
+	
+	//instance variables for printing every 60 seconds (report-interval-s)
 	private long delay = 60*1000; // delay in ms : 60 * 1000 ms = 60 sec.
 	private LoopTask task = new LoopTask();
     private Timer timer = new Timer("printServerStats");
 	
 	
 	public Server(int portNumber, int threadPoolSize){
+		this(portNumber, threadPoolSize, new ServerConfig());
+	}
+	
+	public Server(int portNumber, int threadPoolSize, ServerConfig serverConfig){
+		config = serverConfig;
+		stats = new ServerStats(config.getSampleSize(), config.getSampleEvery());
+		delay = config.getReportIntervalSeconds() * 1000L;
+		if(config.getHashCacheBytes() > 0){
+			hashCache = new HashCache(config.getHashCacheBytes());
+		}
 		port = portNumber;
 		poolSize = threadPoolSize;
-		threadPool = new ThreadPoolManager(poolSize, this);
+		threadPool = new ThreadPoolManager(poolSize, config.getMaxPoolSize(poolSize), config.getQueueCapacity(), this);
+		threadPool.setExecutorMode(config.getExecutorMode());
+		threadPool.setOrdering(config.getOrdering());
+		threadPool.setWorkerBatchSize(config.getWorkerBatchSize());
+		threadPool.setOverflowPolicy(config.getOverflowPolicy());
+		int capacity = threadPool.getQueueCapacity();
+		threadPool.setWaterMarks(capacity * config.getHighWaterPercent() / 100, capacity * config.getLowWaterPercent() / 100);
+		threadPool.setKeepAlive(config.getKeepAliveMillis());
+		threadPool.setGrowthThresholds(config.getGrowQueueDepth(capacity), config.getGrowWaitMillis());
 		hostName = "";
 		try {
 			hostName = InetAddress.getLocalHost().getHostName();
@@ -80,11 +104,14 @@ public class Server implements Runnable {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
 		}
-		packetCount = 0;
 		startTime = System.currentTimeMillis();
 		clientCount = 0;
 		try {
 			this.selector = this.initSelector();
+			reactors = new Reactor[config.getSelectorCount()];
+			for (int i = 0; i < reactors.length; i++) {
+				reactors[i] = new Reactor(this, config, i);
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -96,12 +123,41 @@ public class Server implements Runnable {
 		return hostAddress;
 	}
 	
+	/**
+	 * @return the port the server is listening on (the one picked by the system if it was created with port 0)
+	 */
 	public int getPort(){
-		return port;
+		return serverChannel.socket().getLocalPort();
+	}
+	
+	public ThreadPoolManager getThreadPool(){
+		return threadPool;
+	}
+	
+	/**
+	 * @return number of selector threads, whose ids run from 0 (see Reactor.getId)
+	 */
+	public int getReactorCount(){
+		return reactors.length;
+	}
+	
+	public BufferPool getBufferPool(){
+		return bufferPool;
+	}
+	
+	/**
+	 * @return the cache of digests for repeated payloads, or null if it is off
+	 */
+	public HashCache getHashCache(){
+		return hashCache;
 	}
 	
-	public void addHandledMessage(MessageInfo message){
-		handledMessages.offer(message);
+	public ServerStats getStats(){
+		return stats;
+	}
+	
+	public ClientRegistry getClients(){
+		return clients;
 	}
 
 	
@@ -139,20 +195,45 @@ public class Server implements Runnable {
 	    	
 	    	
 	        System.out.println("Server at " + hostName + " running");
-	        System.out.println("Thread pool size: " + poolSize);
+	        if(threadPool.getExecutorMode() == ExecutorMode.VIRTUAL){
+	        	System.out.println("Executor: thread per packet, " + threadPool.getQueueSize() + " in flight");
+	        }
+	        else if(threadPool.getExecutorMode() == ExecutorMode.INLINE){
+	        	System.out.println("Executor: inline on the selector threads");
+	        }
+	        else{
+		        int[] resizes = threadPool.getResizeCounts();
+		        System.out.println("Thread pool size: " + threadPool.getPoolSize() +
+		        		" (core " + threadPool.getCoreSize() + ", max " + threadPool.getMaxSize() + ")");
+		        System.out.println("Workers started/retired since last report: " + resizes[0] + "/" + resizes[1]);
+		        System.out.println("Packets stolen by idle workers since last report: " + threadPool.getStolenCount());
+	        }
+	        System.out.println("Selector threads: " + reactors.length);
 	        if(elapsedSeconds!=0){
-		        System.out.println("Total Clients connected: " + clientCount);
-		        System.out.println("Packets/Second: " + packetCount/elapsedSeconds);
+		        System.out.println("Total Clients connected: " + clientCount + " (" + clients.size() + " now)");
+		        System.out.println("Packets/Second: " + stats.getPacketsReceived()/elapsedSeconds);
+		        System.out.println("Packets rejected (queue full): " + stats.getPacketsRejected());
+		        if(hashCache != null){
+		        	long hits = stats.getHashCacheHits();
+		        	long lookups = hits + stats.getHashCacheMisses();
+		        	System.out.println("Hash cache: " + hits + " hits, " + (lookups - hits) + " misses (" +
+		        			(lookups == 0 ? 0 : hits * 100 / lookups) + "% hit), " + hashCache.size() + " payloads in " +
+		        			hashCache.getBytes() / 1024 + " KB");
+		        }
 		        System.out.println("Server Uptime: " + upTimeString);
 		        
-		        while(!handledMessages.isEmpty()){
-		        	System.out.println();
-		        	MessageInfo temp = handledMessages.remove();
-		        	System.out.println("[ClientMessage-" + temp.clientName +
-		        			"] Hash: " + temp.hash);
-		        	System.out.println("[ServerStatus] Message from Client at " +
-		        			temp.clientName + " was handled by thread-" + temp.workerID);
+		        LatencyHistogram.Snapshot[] latencies = stats.snapshotLatencies();
+		        for(int i=0; i<latencies.length; i++){
+		        	System.out.println("Latency " + ServerStats.LATENCY_NAMES[i] + ": " + latencies[i]);
+		        }
+		        if(config.getStatsFile() != null){
+		        	try {
+		        		stats.writeStatsFile(config.getStatsFile(), latencies);
+		        	} catch (IOException e) {
+		        		System.out.println("Could not write stats file: " + e.getMessage());
+		        	}
 		        }
+		        stats.printSamples(System.out, clients);
 		        
 	        }
 	    }
@@ -182,33 +263,6 @@ public class Server implements Runnable {
 		return socketSelector;
 	}
 	
-	private void write(SelectionKey key) throws IOException {
-		
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		
-		
-		synchronized (pendingData) {
-			List queue = (List) pendingData.get(socketChannel);
-
-			// Write until there's no more data
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				socketChannel.write(buf);
-				if (buf.remaining() > 0) {
-					// or the socket's buffer fills up
-					break;
-				}
-				queue.remove(0);
-			}
-
-			if (queue.isEmpty()) {
-				// done writing data, switch back to reading
-				key.interestOps(SelectionKey.OP_READ);
-			}
-		}
-	}
-	
 	private void accept(SelectionKey key) throws IOException {
 		//increment client Count
 		clientCount++;
@@ -217,91 +271,96 @@ public class Server implements Runnable {
 
 		// Accept the connection and make it non-blocking
 		SocketChannel socketChannel = serverSocketChannel.accept();
-		Socket socket = socketChannel.socket();
 		socketChannel.configureBlocking(false);
 
-		// Register the new SocketChannel with Selector
-		//will be notified when there's data to be read
-		socketChannel.register(selector, SelectionKey.OP_READ);
-	}
-
-	private void read(SelectionKey key) throws IOException {
-		
-		SocketChannel socketChannel = (SocketChannel) key.channel();
-
-		// Clear out read buffer so it's ready for new data
-		readBuffer.clear();
-
-		// Attempt to read off the channel
-		int numRead;
-		try {
-			numRead = socketChannel.read(readBuffer);
-		} catch (IOException e) {
-			// The remote forcibly closed the connection, cancel
-			// the selection key and close the channel.
-			key.cancel();
-			socketChannel.close();
-			return;
+		// Hand the new SocketChannel to the least loaded reactor,
+		// it will be notified when there's data to be read
+		Reactor target = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		for (Reactor reactor : reactors) {
+			if (reactor.getConnectionCount() < target.getConnectionCount()) {
+				target = reactor;
+			}
 		}
-
-		if (numRead == -1) {
-			// Remote entity shut the socket down cleanly. Do the
-			// same from server end and cancel the channel.
-			key.channel().close();
-			key.cancel();
+		ClientInfo client = clients.register(socketChannel);
+		if (client == null) {
+			// already gone
 			return;
 		}
-
-		// Hand the data off to threadPool
-		Task task = new Task(socketChannel, readBuffer.array(), numRead);
-		threadPool.addTask(task);
-		packetCount++;
+		target.register(socketChannel, client);
 	}
 
-	public void send(SocketChannel socket, byte[] data) {
-		synchronized (pendingChanges) {
-			// change interest ops set
-			pendingChanges.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-
-			// And queue the data we want written
-			synchronized (pendingData) {
-				List<ByteBuffer> queue = this.pendingData.get(socket);
-				if (queue == null) {
-					queue = new ArrayList<ByteBuffer>();
-					pendingData.put(socket, queue);
-				}
-				queue.add(ByteBuffer.wrap(data));
-			}
+	/**
+	 * Queue data to be written to a connection (see Reactor.send)
+	 * @param connection
+	 * @param data - flipped, ready to write, numbered with its packet's sequence number; released once it has been written
+	 */
+	public void send(Connection connection, PooledBuffer data) {
+		connection.getReactor().send(connection, data);
+	}
+	
+	/**
+	 * Queue several responses to a connection at once (see Reactor.send)
+	 * @param connection
+	 * @param data - the responses are data[offset] to data[offset + count - 1]
+	 */
+	public void send(Connection connection, PooledBuffer[] data, int offset, int count) {
+		connection.getReactor().send(connection, data, offset, count);
+	}
+	
+	/**
+	 * Answer a Task the thread pool had no room for with an error response
+	 * @param task
+	 */
+	public void reject(Task task) {
+		stats.packetRejected();
+		task.release();
+		int length = task.getDigestAlgorithm().getLength();
+		PooledBuffer error = bufferPool.acquire(length);
+		Frame.putError(error.getBuffer(), length);
+		error.getBuffer().flip();
+		// keeps its place among the connection's responses
+		error.setSequence(task.getSequence());
+		send(task.getConnection(), error);
+	}
+	
+	/**
+	 * Called by the thread pool when its queue drains below the low-water mark,
+	 * so reactors that stopped reading can resume
+	 */
+	public void poolDrained() {
+		for (Reactor reactor : reactors) {
+			reactor.resumeReading();
 		}
-		
-		//  wake up selecting thread so it can make required changes
-		selector.wakeup();
 	}
 	
+	/**
+	 * Called by the reactors with the number of packets handed to the thread pool
+	 */
+	void packetsReceived(int count) {
+		stats.packetsReceived(count);
+	}
+	
+	/**
+	 * Starts the reactors, then accepts connections and hands them out
+	 */
 	public void run() {
-		while (true) {
+		acceptThread = Thread.currentThread();
+		reactorThreads = new Thread[reactors.length];
+		for (int i = 0; i < reactors.length; i++) {
+			reactorThreads[i] = new Thread(reactors[i], "reactor-" + reactors[i].getId());
+			reactorThreads[i].start();
+		}
+		
+		while (running) {
 			try {
-				// Process any pending changes
-				synchronized (pendingChanges) {
-					Iterator<ChangeRequest> changes = pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(selector);
-							key.interestOps(change.ops);
-						}
-					}
-					this.pendingChanges.clear();
-				}
-
 				// Wait for an event one of the registered channels
 				this.selector.select();
 
 				// Iterate over the set of keys for which events are available
-				Iterator selectedKeys = this.selector.selectedKeys().iterator();
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
 				while (selectedKeys.hasNext()) {
-					SelectionKey key = (SelectionKey) selectedKeys.next();
+					SelectionKey key = selectedKeys.next();
 					selectedKeys.remove();
 
 					if (!key.isValid()) {
@@ -311,31 +370,112 @@ public class Server implements Runnable {
 					// Check what event is available and deal with it
 					if (key.isAcceptable()) {
 						this.accept(key);
-					} else if (key.isReadable()) {
-						this.read(key);
-					} else if (key.isWritable()) {
-						this.write(key);
 					}
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
+		
+		try {
+			selector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Shut down without losing the packets already read: stop accepting connections and reading
+	 * packets, let the thread pool drain its queue, write out the responses and close every connection.
+	 * Packets the pool couldn't hash before the timeout are answered with an error response
+	 * @param timeoutMillis - longest to wait for the queue to drain, and again for the responses to be written
+	 */
+	public void shutdown(long timeoutMillis){
+		timer.cancel();
+		
+		// no new connections
+		running = false;
+		selector.wakeup();
+		join(acceptThread, timeoutMillis);
+		
+		if (reactorThreads == null) {
+			// run() was never called (the thread pool was used on its own, e.g. by a test)
+			threadPool.stop(timeoutMillis);
+			try {
+				selector.close();
+				serverChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		// no new packets
+		for (Reactor reactor : reactors) {
+			reactor.stopReading(timeoutMillis);
+		}
+		
+		// hash what has been read
+		threadPool.stop(timeoutMillis);
+		
+		// write out the responses, then close the connections
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Reactor reactor : reactors) {
+			reactor.close(deadline);
+		}
+		int unsent = 0;
+		for (int i = 0; i < reactors.length; i++) {
+			join(reactorThreads[i], Math.max(1, deadline - System.currentTimeMillis()));
+			unsent += reactors[i].getUnsentCount();
+		}
+		
+		System.out.println("Server shut down: " + threadPool.getCompletedCount() + " tasks completed, " +
+				threadPool.getAbandonedCount() + " abandoned, " + unsent + " responses unsent");
+	}
+	
+	private static void join(Thread thread, long millis){
+		if (thread == null) {
+			return;
+		}
+		try {
+			thread.join(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	//java cs455.scaling.server.Server portnum thread-pool-size
 		public static void main(String args[]){
-			if(args.length!=2){ 
-				System.out.println("Usage: java cs455.scaling.server.Server portnum thread-pool-size");
+			if(args.length<2){ 
+				System.out.println("Usage: java cs455.scaling.server.Server portnum thread-pool-size [option=value ...]");
+				System.out.println(ServerConfig.USAGE);
 				return;
 			}
 			
-			Server server = new Server(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+			ServerConfig config;
+			try {
+				config = ServerConfig.parse(Arrays.copyOfRange(args, 2, args.length));
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.out.println(ServerConfig.USAGE);
+				return;
+			}
+			
+			final Server server = new Server(Integer.parseInt(args[0]), Integer.parseInt(args[1]), config);
+			final long shutdownTimeout = config.getShutdownTimeoutMillis();
 			//start run method
 			new Thread(server).start();
 			//start start method
 			server.start();
 			
+			// drain instead of dropping in-flight packets when stopped (SIGTERM / Ctrl-C)
+			Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+				public void run() {
+					server.shutdown(shutdownTimeout);
+				}
+			});
+			
 		}
 
 	
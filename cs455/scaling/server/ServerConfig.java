@@ -0,0 +1,272 @@
+package cs455.scaling.server;
+
+import cs455.scaling.pool.ExecutorMode;
+import cs455.scaling.pool.OrderingMode;
+import cs455.scaling.pool.OverflowPolicy;
+import cs455.scaling.pool.ThreadPoolManager;
+
+/**
+ * Optional server settings, given on the command line as option=value after the
+ * required arguments. Every setting has a default, so none of them need to be given
+ * @author Owner Theresa Wellington
+ *
+ */
+public class ServerConfig {
+	
+	public static final String USAGE =
+			"Options:\n" +
+			"\tselectors=N       number of I/O selector threads connections are spread over (default 1)\n" +
+			"\twrite-batch=N     most responses written to a connection per syscall; a full batch is flushed immediately (default 32)\n" +
+			"\tflush-delay-ms=N  longest a response waits for its batch to fill before it is flushed, 0 to flush right away (default 1)\n" +
+			"\tqueue-capacity=N  most packets waiting for a worker, rounded up to a power of two (default 4096)\n" +
+			"\thigh-water=P      stop reading from clients once the queue is P percent full (default 75)\n" +
+			"\tlow-water=P       resume reading once the queue drains to P percent full (default 25)\n" +
+			"\toverflow=POLICY   what to do with a packet when the queue is full: block, drop-oldest or reject (default block)\n" +
+			"\tpool-max=N        most worker threads the pool grows to; thread-pool-size is the core size (default thread-pool-size)\n" +
+			"\tkeep-alive-ms=N   how long an extra worker stays idle before it retires (default 60000)\n" +
+			"\tgrow-queue-depth=N  start an extra worker when this many packets are queued and no worker is idle (default queue-capacity/16)\n" +
+			"\tgrow-wait-ms=N    start an extra worker when a packet waited this long for a worker (default 10)\n" +
+			"\tworker-batch=N    most packets a worker takes from the queue per wakeup (default 8)\n" +
+			"\texecutor=MODE     pool: hash on the worker pool; virtual: hash each packet on its own virtual thread (Java 21+);\n" +
+			"\t                  inline: hash on the selector thread that read the packet, no pool (default pool)\n" +
+			"\tordering=MODE     reorder: a connection's packets may be hashed in parallel, responses are put back in order;\n" +
+			"\t                  keyed: a connection's packets are hashed one at a time, in order (default reorder)\n" +
+			"\thash-cache-mb=N   cache the SHA digests of payloads that are sent more than once, in at most N MB; 0 for no cache (default 0)\n" +
+			"\treport-interval-s=N  seconds between stats reports; latency percentiles cover one interval (default 60)\n" +
+			"\tstats-file=PATH   also write each report's counters and latencies to PATH as name=value lines (default none)\n" +
+			"\tsample-every=N    print one in N hashed messages in the stats report (default 1000)\n" +
+			"\tsample-size=N     most sampled messages printed per report, 0 for none (default 64)\n" +
+			"\tshutdown-timeout-ms=N  on shutdown, longest to wait for queued packets to be hashed, and again for responses to be written (default 5000)";
+	
+	private int selectorCount = 1;
+	private int writeBatchSize = 32;
+	private long flushDelayMillis = 1;
+	private int queueCapacity = ThreadPoolManager.DEFAULT_QUEUE_CAPACITY;
+	private int highWaterPercent = 75;
+	private int lowWaterPercent = 25;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	// 0 means the same as the core pool size / queue-capacity/16
+	private int maxPoolSize = 0;
+	private int growQueueDepth = 0;
+	private long keepAliveMillis = 60 * 1000;
+	private long growWaitMillis = 10;
+	private long shutdownTimeoutMillis = 5000;
+	private ExecutorMode executorMode = ExecutorMode.POOL;
+	private OrderingMode ordering = OrderingMode.REORDER;
+	private int workerBatchSize = ThreadPoolManager.DEFAULT_WORKER_BATCH_SIZE;
+	private int sampleEvery = 1000;
+	private int sampleSize = 64;
+	private int hashCacheMegabytes = 0;
+	private int reportIntervalSeconds = 60;
+	private String statsFile = null;
+	
+	/**
+	 * Parse option=value arguments
+	 * @param options
+	 * @return the settings, with defaults for any option not given
+	 * @throws IllegalArgumentException if an option is unknown or its value is invalid
+	 */
+	public static ServerConfig parse(String[] options){
+		ServerConfig config = new ServerConfig();
+		for(String option:options){
+			int split = option.indexOf('=');
+			if(split < 0){
+				throw new IllegalArgumentException("Expected option=value: " + option);
+			}
+			String name = option.substring(0, split);
+			String value = option.substring(split + 1);
+			try {
+				if(name.equals("selectors")){
+					config.selectorCount = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("write-batch")){
+					config.writeBatchSize = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("flush-delay-ms")){
+					config.flushDelayMillis = Long.parseLong(value);
+					if(config.flushDelayMillis < 0){
+						throw new IllegalArgumentException(name + " must not be negative");
+					}
+				}
+				else if(name.equals("queue-capacity")){
+					config.queueCapacity = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("high-water")){
+					config.highWaterPercent = percent(name, Integer.parseInt(value));
+				}
+				else if(name.equals("low-water")){
+					config.lowWaterPercent = percent(name, Integer.parseInt(value));
+				}
+				else if(name.equals("overflow")){
+					config.overflowPolicy = OverflowPolicy.fromName(value);
+				}
+				else if(name.equals("pool-max")){
+					config.maxPoolSize = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("keep-alive-ms")){
+					config.keepAliveMillis = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("grow-queue-depth")){
+					config.growQueueDepth = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("grow-wait-ms")){
+					config.growWaitMillis = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("worker-batch")){
+					config.workerBatchSize = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("report-interval-s")){
+					config.reportIntervalSeconds = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("stats-file")){
+					config.statsFile = value;
+				}
+				else if(name.equals("sample-every")){
+					config.sampleEvery = positive(name, Integer.parseInt(value));
+				}
+				else if(name.equals("sample-size")){
+					config.sampleSize = Integer.parseInt(value);
+					if(config.sampleSize < 0){
+						throw new IllegalArgumentException(name + " must not be negative");
+					}
+				}
+				else if(name.equals("hash-cache-mb")){
+					config.hashCacheMegabytes = Integer.parseInt(value);
+					if(config.hashCacheMegabytes < 0){
+						throw new IllegalArgumentException(name + " must not be negative");
+					}
+				}
+				else if(name.equals("executor")){
+					config.executorMode = ExecutorMode.fromName(value);
+				}
+				else if(name.equals("ordering")){
+					config.ordering = OrderingMode.fromName(value);
+				}
+				else if(name.equals("shutdown-timeout-ms")){
+					config.shutdownTimeoutMillis = Long.parseLong(value);
+					if(config.shutdownTimeoutMillis < 0){
+						throw new IllegalArgumentException(name + " must not be negative");
+					}
+				}
+				else{
+					throw new IllegalArgumentException("Unknown option: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+			}
+		}
+		if(config.lowWaterPercent > config.highWaterPercent){
+			throw new IllegalArgumentException("low-water must not be above high-water");
+		}
+		return config;
+	}
+	
+	private static int percent(String name, int value){
+		if(value < 0 || value > 100){
+			throw new IllegalArgumentException(name + " must be a percentage");
+		}
+		return value;
+	}
+	
+	private static int positive(String name, int value){
+		if(value < 1){
+			throw new IllegalArgumentException(name + " must be positive");
+		}
+		return value;
+	}
+	
+	public int getSelectorCount(){
+		return selectorCount;
+	}
+	
+	public int getWriteBatchSize(){
+		return writeBatchSize;
+	}
+	
+	public long getFlushDelayMillis(){
+		return flushDelayMillis;
+	}
+	
+	public int getQueueCapacity(){
+		return queueCapacity;
+	}
+	
+	public int getHighWaterPercent(){
+		return highWaterPercent;
+	}
+	
+	public int getLowWaterPercent(){
+		return lowWaterPercent;
+	}
+	
+	public OverflowPolicy getOverflowPolicy(){
+		return overflowPolicy;
+	}
+	
+	/**
+	 * @param coreSize - the thread-pool-size argument
+	 * @return most worker threads the pool may grow to
+	 */
+	public int getMaxPoolSize(int coreSize){
+		return Math.max(coreSize, maxPoolSize);
+	}
+	
+	public long getKeepAliveMillis(){
+		return keepAliveMillis;
+	}
+	
+	/**
+	 * @param queueCapacity - the pool's actual queue capacity
+	 * @return queue length at which the pool grows
+	 */
+	public int getGrowQueueDepth(int queueCapacity){
+		return growQueueDepth > 0 ? growQueueDepth : Math.max(1, queueCapacity / 16);
+	}
+	
+	public long getGrowWaitMillis(){
+		return growWaitMillis;
+	}
+	
+	public long getShutdownTimeoutMillis(){
+		return shutdownTimeoutMillis;
+	}
+	
+	public ExecutorMode getExecutorMode(){
+		return executorMode;
+	}
+	
+	public OrderingMode getOrdering(){
+		return ordering;
+	}
+	
+	public int getWorkerBatchSize(){
+		return workerBatchSize;
+	}
+	
+	public int getSampleEvery(){
+		return sampleEvery;
+	}
+	
+	public int getSampleSize(){
+		return sampleSize;
+	}
+	
+	/**
+	 * @return most memory the hash cache may hold, 0 for no cache
+	 */
+	public long getHashCacheBytes(){
+		return hashCacheMegabytes * 1024L * 1024L;
+	}
+	
+	public int getReportIntervalSeconds(){
+		return reportIntervalSeconds;
+	}
+	
+	/**
+	 * @return path to write stats to, or null
+	 */
+	public String getStatsFile(){
+		return statsFile;
+	}
+
+}
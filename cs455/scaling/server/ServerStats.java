@@ -0,0 +1,195 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.SHA1;
+
+/**
+ * The server's statistics. Counters are LongAdders, so the reactors and workers updating them
+ * for every packet don't contend; the reporter adds up their cells when it prints.
+ * Individual messages are sampled (one in sampleEvery) into a fixed ring of reused MessageInfo
+ * slots, so recording a packet never allocates or locks.
+ * Latencies are recorded in histograms for each stage a packet goes through:
+ * read to enqueue (waiting for the end of the select cycle), queue wait, hashing, and
+ * response queued to written
+ * @author Owner Theresa Wellington
+ *
+ */
+public class ServerStats {
+	
+	private LongAdder packetsReceived = new LongAdder();
+	private LongAdder packetsRejected = new LongAdder();
+	private LongAdder hashCacheHits = new LongAdder();
+	private LongAdder hashCacheMisses = new LongAdder();
+	
+	public static final String[] LATENCY_NAMES = {"read_to_enqueue", "queue_wait", "hash", "enqueue_to_flush"};
+	private LatencyHistogram readToEnqueue = new LatencyHistogram();
+	private LatencyHistogram queueWait = new LatencyHistogram();
+	private LatencyHistogram hashTime = new LatencyHistogram();
+	private LatencyHistogram enqueueToFlush = new LatencyHistogram();
+	
+	// null when sampling is off
+	private MessageInfo[] samples;
+	private int sampleEvery;
+	private AtomicLong sampleCount = new AtomicLong();
+	
+	// reporter only: samples up to here have been printed
+	private long reported = 0;
+	private MessageInfo copy = new MessageInfo();
+	
+	/**
+	 * @param sampleSize - most sampled messages kept between reports, 0 to sample none
+	 * @param sampleEvery - record one in this many hashed messages
+	 */
+	public ServerStats(int sampleSize, int sampleEvery){
+		this.sampleEvery = sampleEvery;
+		if(sampleSize > 0){
+			samples = new MessageInfo[sampleSize];
+			for(int i=0; i<sampleSize; i++){
+				samples[i] = new MessageInfo();
+			}
+		}
+	}
+	
+	public void packetsReceived(int count){
+		packetsReceived.add(count);
+	}
+	
+	public void packetRejected(){
+		packetsRejected.increment();
+	}
+	
+	public void hashCacheHit(){
+		hashCacheHits.increment();
+	}
+	
+	public void hashCacheMiss(){
+		hashCacheMisses.increment();
+	}
+	
+	public long getHashCacheHits(){
+		return hashCacheHits.sum();
+	}
+	
+	public long getHashCacheMisses(){
+		return hashCacheMisses.sum();
+	}
+	
+	public long getPacketsReceived(){
+		return packetsReceived.sum();
+	}
+	
+	public long getPacketsRejected(){
+		return packetsRejected.sum();
+	}
+	
+	public LatencyHistogram getReadToEnqueue(){
+		return readToEnqueue;
+	}
+	
+	public LatencyHistogram getQueueWait(){
+		return queueWait;
+	}
+	
+	public LatencyHistogram getHashTime(){
+		return hashTime;
+	}
+	
+	public LatencyHistogram getEnqueueToFlush(){
+		return enqueueToFlush;
+	}
+	
+	/**
+	 * Take the latencies recorded since the last call
+	 * @return one snapshot per stage, in the order of LATENCY_NAMES
+	 */
+	public LatencyHistogram.Snapshot[] snapshotLatencies(){
+		return new LatencyHistogram.Snapshot[] {
+				readToEnqueue.snapshotAndReset(),
+				queueWait.snapshotAndReset(),
+				hashTime.snapshotAndReset(),
+				enqueueToFlush.snapshotAndReset()};
+	}
+	
+	/**
+	 * Write the counters and an interval's latencies as name=value lines, for scripts to read.
+	 * The file is replaced in one step, so readers never see half of it
+	 * @param path
+	 * @param latencies - from snapshotLatencies
+	 * @throws IOException
+	 */
+	public void writeStatsFile(String path, LatencyHistogram.Snapshot[] latencies) throws IOException {
+		StringBuilder out = new StringBuilder();
+		out.append("time_ms=").append(System.currentTimeMillis()).append('\n');
+		out.append("packets_received=").append(getPacketsReceived()).append('\n');
+		out.append("packets_rejected=").append(getPacketsRejected()).append('\n');
+		out.append("hash_cache_hits=").append(getHashCacheHits()).append('\n');
+		out.append("hash_cache_misses=").append(getHashCacheMisses()).append('\n');
+		for(int i=0; i<latencies.length; i++){
+			String name = LATENCY_NAMES[i];
+			LatencyHistogram.Snapshot latency = latencies[i];
+			out.append(name).append(".count=").append(latency.getCount()).append('\n');
+			out.append(name).append(".p50_ns=").append(latency.getValueAtPercentile(50)).append('\n');
+			out.append(name).append(".p90_ns=").append(latency.getValueAtPercentile(90)).append('\n');
+			out.append(name).append(".p99_ns=").append(latency.getValueAtPercentile(99)).append('\n');
+			out.append(name).append(".p999_ns=").append(latency.getValueAtPercentile(99.9)).append('\n');
+			out.append(name).append(".max_ns=").append(latency.getMax()).append('\n');
+		}
+		Path target = Paths.get(path);
+		Path temp = Paths.get(path + ".tmp");
+		Files.write(temp, out.toString().getBytes(StandardCharsets.US_ASCII));
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Called for every hashed message; records one in sampleEvery of them
+	 * @param clientID - see ClientRegistry
+	 * @param hash - binary digest, position unchanged
+	 * @param workerID - the worker that hashed it
+	 */
+	public void packetHashed(int clientID, ByteBuffer hash, int workerID){
+		if(samples == null || ThreadLocalRandom.current().nextInt(sampleEvery) != 0){
+			return;
+		}
+		long sample = sampleCount.getAndIncrement();
+		samples[(int) (sample % samples.length)].write(sample, clientID, hash, workerID);
+	}
+	
+	/**
+	 * Print the messages sampled since the last call (the newest ones, if more were sampled than the ring holds)
+	 * @param out
+	 * @param clients - to look up the clients' names
+	 */
+	synchronized void printSamples(PrintStream out, ClientRegistry clients){
+		if(samples == null){
+			return;
+		}
+		long end = sampleCount.get();
+		for(long sample = Math.max(reported, end - samples.length); sample < end; sample++){
+			if(!samples[(int) (sample % samples.length)].copyTo(copy) || copy.index != sample){
+				// overwritten or still being written
+				continue;
+			}
+			ClientInfo client = clients.get(copy.clientID);
+			String clientName = client != null ? client.getDisplayName() : "client-" + copy.clientID + " (disconnected)";
+			out.println();
+			out.println("[ClientMessage-" + clientName +
+					"] Hash: " + SHA1.toHex(copy.hash, copy.hashLength));
+			out.println("[ServerStatus] Message from Client at " +
+					clientName + " was handled by thread-" + copy.workerID);
+		}
+		reported = end;
+	}
+
+}
@@ -0,0 +1,140 @@
+package cs455.scaling.test;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * Collects a benchmark's results and prints them as tab separated lines (name, value, unit)
+ * so runs can be compared across commits. Benchmarks accept these options:
+ * 		save=PATH       write the results to PATH as a baseline
+ * 		compare=PATH    compare the results with a saved baseline and exit with status 1
+ * 						if any got worse by more than the tolerance
+ * 		tolerance=P     percentage a result may get worse before it counts as a regression (default 10)
+ *
+ */
+public class BenchmarkResults {
+
+	private Map<String, Double> values = new LinkedHashMap<String, Double>();
+	private Map<String, Boolean> higherIsBetter = new LinkedHashMap<String, Boolean>();
+
+	private String savePath;
+	private String comparePath;
+	private double tolerance = 10;
+
+	/**
+	 * @param options - option=value arguments; the ones listed above are used, others are left to the benchmark
+	 */
+	public BenchmarkResults(String[] options){
+		savePath = option(options, "save", null);
+		comparePath = option(options, "compare", null);
+		tolerance = Double.parseDouble(option(options, "tolerance", "10"));
+	}
+
+	/**
+	 * @return the value of the option=value argument named name, or defaultValue
+	 */
+	public static String option(String[] options, String name, String defaultValue){
+		for(String option:options){
+			if(option.startsWith(name + "=")){
+				return option.substring(name.length() + 1);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @param options - option=value arguments
+	 * @param own - names of the options the benchmark itself uses
+	 * @return the options that are neither the benchmark's own nor BenchmarkResults' (e.g. to pass to ServerConfig.parse)
+	 */
+	public static String[] otherOptions(String[] options, String... own){
+		ArrayList<String> others = new ArrayList<String>();
+		for(String option:options){
+			String name = option.substring(0, Math.max(0, option.indexOf('=')));
+			if(!name.equals("save") && !name.equals("compare") && !name.equals("tolerance") && !Arrays.asList(own).contains(name)){
+				others.add(option);
+			}
+		}
+		return others.toArray(new String[others.size()]);
+	}
+	
+	/**
+	 * Record and print one result
+	 * @param name - unique within the benchmark, e.g. pool.addTasks.threads-4
+	 * @param value
+	 * @param unit
+	 * @param higher - true if a higher value is better (throughput), false if lower is (latency)
+	 */
+	public void record(String name, double value, String unit, boolean higher){
+		values.put(name, value);
+		higherIsBetter.put(name, higher);
+		System.out.printf("%s\t%.1f\t%s%n", name, value, unit);
+	}
+
+	/**
+	 * Save and/or compare the results, as asked for by the options
+	 * @return false if a result regressed past the tolerance
+	 * @throws IOException
+	 */
+	public boolean finish() throws IOException {
+		if(savePath != null){
+			Properties baseline = new Properties();
+			for(Map.Entry<String, Double> entry:values.entrySet()){
+				baseline.setProperty(entry.getKey(), Double.toString(entry.getValue()));
+			}
+			FileOutputStream out = new FileOutputStream(savePath);
+			try {
+				baseline.store(out, "benchmark baseline");
+			} finally {
+				out.close();
+			}
+		}
+		if(comparePath == null){
+			return true;
+		}
+
+		Properties baseline = new Properties();
+		FileInputStream in = new FileInputStream(comparePath);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+		boolean passed = true;
+		System.out.println();
+		System.out.println("name\tbaseline\tnow\tchange");
+		for(Map.Entry<String, Double> entry:values.entrySet()){
+			String old = baseline.getProperty(entry.getKey());
+			if(old == null){
+				continue;
+			}
+			double before = Double.parseDouble(old);
+			double now = entry.getValue();
+			double change = before == 0 ? 0 : (now - before) * 100 / before;
+			// positive when it got worse
+			double worse = higherIsBetter.get(entry.getKey()) ? -change : change;
+			boolean regressed = worse > tolerance;
+			passed &= !regressed;
+			System.out.printf("%s\t%.1f\t%.1f\t%+.1f%%%s%n", entry.getKey(), before, now, change, regressed ? "\tREGRESSION" : "");
+		}
+		return passed;
+	}
+
+	/**
+	 * finish(), then exit with status 1 on a regression
+	 */
+	public void finishAndExit() throws IOException {
+		System.exit(finish() ? 0 : 1);
+	}
+
+}
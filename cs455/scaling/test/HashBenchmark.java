@@ -0,0 +1,127 @@
+package cs455.scaling.test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.RandomData;
+import cs455.scaling.util.SHA1;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * Benchmark for hashing payloads of 8 B, 8 KB and 64 KB, comparing
+ * 		SHA1FromBytes - byte[] in, hex String out
+ * 		digest to byte[] - heap ByteBuffer in, binary digest into a byte[]
+ * 		digest to ByteBuffer - direct ByteBuffer in and out, as the workers do
+ * 		new MessageDigest - MessageDigest.getInstance on every call, as the server first did
+ * and then every DigestAlgorithm a connection can ask for, direct ByteBuffer in and out
+ * Usage: java cs455.scaling.test.HashBenchmark [millis=N] [save=PATH] [compare=PATH] [tolerance=P]
+ *
+ */
+public class HashBenchmark {
+
+	private static final int[] SIZES = {8, 8*1024, 64*1024};
+
+	// results are folded in here so the JIT can't drop the hashing
+	private static long sink;
+
+	/**
+	 * One way of hashing a payload
+	 */
+	private interface Hasher {
+		void hash();
+	}
+
+	/**
+	 * Call hasher for at least millis milliseconds
+	 * @return nanoseconds per call
+	 */
+	private static double run(Hasher hasher, long millis){
+		long calls = 0;
+		long start = System.nanoTime();
+		long end = start + millis * 1000000L;
+		long now;
+		do{
+			for(int i=0; i<64; i++){
+				hasher.hash();
+			}
+			calls += 64;
+			now = System.nanoTime();
+		} while(now < end);
+		return (double) (now - start) / calls;
+	}
+
+	public static void main(String args[]) throws Exception{
+		long millis = Long.parseLong(BenchmarkResults.option(args, "millis", "1000"));
+		BenchmarkResults results = new BenchmarkResults(args);
+
+		for(int size:SIZES){
+			final byte[] data = RandomData.generateData(size);
+			final ByteBuffer heap = ByteBuffer.wrap(data);
+			final ByteBuffer direct = ByteBuffer.allocateDirect(size);
+			direct.put(data).flip();
+			final byte[] hashBytes = new byte[SHA1.DIGEST_LENGTH];
+			final ByteBuffer hashBuffer = ByteBuffer.allocateDirect(DigestAlgorithm.MAX_LENGTH);
+
+			Hasher[] hashers = {
+				new Hasher(){
+					public void hash(){
+						sink += SHA1.SHA1FromBytes(data).charAt(0);
+					}
+				},
+				new Hasher(){
+					public void hash(){
+						heap.rewind();
+						SHA1.digest(heap, hashBytes, 0);
+						sink += hashBytes[0];
+					}
+				},
+				new Hasher(){
+					public void hash(){
+						direct.rewind();
+						hashBuffer.clear();
+						SHA1.digest(direct, hashBuffer);
+						sink += hashBuffer.get(0);
+					}
+				},
+				new Hasher(){
+					public void hash(){
+						try {
+							sink += MessageDigest.getInstance("SHA1").digest(data)[0];
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+			String[] names = {"SHA1FromBytes", "digest-to-bytes", "digest-to-buffer", "new-MessageDigest"};
+
+			for(int i=0; i<hashers.length; i++){
+				// warm up, then measure
+				run(hashers[i], millis / 2);
+				double nanos = run(hashers[i], millis);
+				results.record("sha1." + names[i] + "." + size + "B", nanos, "ns/op", false);
+			}
+
+			for(final DigestAlgorithm algorithm:DigestAlgorithm.values()){
+				Hasher hasher = new Hasher(){
+					public void hash(){
+						direct.rewind();
+						hashBuffer.clear();
+						algorithm.getDigest().digest(direct, hashBuffer);
+						sink += hashBuffer.get(0);
+					}
+				};
+				run(hasher, millis / 2);
+				double nanos = run(hasher, millis);
+				results.record("digest." + algorithm.name().toLowerCase() + "." + size + "B", nanos, "ns/op", false);
+			}
+		}
+		System.out.println("(sink " + sink + ")");
+		results.finishAndExit();
+	}
+
+}
@@ -0,0 +1,127 @@
+package cs455.scaling.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import cs455.scaling.server.*;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * A connection to a Server that stays inside the JVM, for tests and benchmarks that hand
+ * Tasks straight to the server's thread pool: a loopback socket pair whose server end is
+ * registered with a Reactor of its own, and a thread reading the responses off the client end
+ *
+ */
+public class LoopbackConnection {
+
+	private Reactor reactor;
+	private Thread reactorThread;
+	private Connection connection;
+	private SocketChannel clientEnd;
+	private Thread reader;
+
+	private volatile long responseBytes = 0;
+	// every response byte, in order (only if asked to keep them)
+	private ByteArrayOutputStream responses;
+
+	/**
+	 * @param server - its thread pool's workers send their responses through this connection
+	 * @param keepResponses - keep the responses for getResponses, instead of only counting them
+	 * @throws IOException
+	 */
+	public LoopbackConnection(Server server, boolean keepResponses) throws IOException {
+		if(keepResponses){
+			responses = new ByteArrayOutputStream();
+		}
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		clientEnd = SocketChannel.open(listener.socket().getLocalSocketAddress());
+		SocketChannel serverEnd = listener.accept();
+		listener.close();
+		serverEnd.configureBlocking(false);
+
+		reactor = new Reactor(server, new ServerConfig(), 0);
+		reactorThread = new Thread(reactor, "loopback-reactor");
+		reactorThread.start();
+		connection = reactor.register(serverEnd, server.getClients().register(serverEnd));
+
+		reader = new Thread(new Runnable(){
+			public void run(){
+				read();
+			}
+		}, "loopback-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void read(){
+		ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+		try {
+			int count;
+			while((count = clientEnd.read(buffer)) >= 0){
+				if(responses != null){
+					synchronized(responses){
+						responses.write(buffer.array(), 0, count);
+					}
+				}
+				responseBytes += count;
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * @return the server's end of the connection, to create Tasks for
+	 */
+	public Connection getConnection(){
+		return connection;
+	}
+
+	public long getResponseBytes(){
+		return responseBytes;
+	}
+
+	/**
+	 * Wait until at least bytes bytes of responses have arrived
+	 * @return false if they didn't arrive within timeoutMillis
+	 */
+	public boolean awaitResponseBytes(long bytes, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(responseBytes < bytes){
+			if(System.currentTimeMillis() > deadline){
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * @return every response byte read so far (only if the responses are kept)
+	 */
+	public byte[] getResponses(){
+		synchronized(responses){
+			return responses.toByteArray();
+		}
+	}
+
+	/**
+	 * Flush what's queued, then close both ends and stop the reactor
+	 */
+	public void close() throws IOException, InterruptedException {
+		reactor.close(System.currentTimeMillis() + 1000);
+		reactorThread.join();
+		clientEnd.close();
+	}
+
+}
@@ -0,0 +1,83 @@
+package cs455.scaling.test;
+
+import java.util.ArrayList;
+
+import cs455.scaling.pool.*;
+import cs455.scaling.server.Server;
+import cs455.scaling.server.ServerConfig;
+import cs455.scaling.util.PooledBuffer;
+import cs455.scaling.util.RandomData;
+import cs455.scaling.util.SHA1;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * Throughput benchmark for the thread pool at 1, 2, 4 and 8 workers: packets are handed
+ * to the pool one at a time (addTask) and in batches like a reactor's select cycle (addTasks),
+ * hashed, and their responses written over a loopback connection.
+ * Usage: java cs455.scaling.test.PoolBenchmark [tasks=N] [payload=BYTES] [option=value ...]
+ * 		(other options are passed to the server, see ServerConfig, or BenchmarkResults)
+ *
+ */
+public class PoolBenchmark {
+
+	private static final int[] POOL_SIZES = {1, 2, 4, 8};
+	private static final int BATCH = 32;
+
+	/**
+	 * Hash tasks packets of payloadSize bytes on a pool of poolSize workers
+	 * @return packets per second
+	 */
+	private static double run(int poolSize, ServerConfig config, int tasks, int payloadSize, boolean batched) throws Exception{
+		Server server = new Server(0, poolSize, config);
+		ThreadPoolManager manager = server.getThreadPool();
+		LoopbackConnection loopback = new LoopbackConnection(server, false);
+
+		long start = System.nanoTime();
+		ArrayList<Task> batch = new ArrayList<Task>(BATCH);
+		for(int i=0; i<tasks; i++){
+			PooledBuffer payload = server.getBufferPool().acquire(payloadSize);
+			RandomData.fill(payload.getBuffer());
+			payload.getBuffer().flip();
+			Task task = new Task(loopback.getConnection(), payload);
+			if(!batched){
+				manager.addTask(task);
+				continue;
+			}
+			batch.add(task);
+			if(batch.size() == BATCH){
+				manager.addTasks(batch);
+				batch.clear();
+			}
+		}
+		manager.addTasks(batch);
+		if(!loopback.awaitResponseBytes((long) tasks * SHA1.DIGEST_LENGTH, 60000)){
+			System.out.println("Timed out waiting for responses");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		server.shutdown(1000);
+		loopback.close();
+		return (double) tasks * 1000000000L / elapsed;
+	}
+
+	public static void main(String args[]) throws Exception{
+		int tasks = Integer.parseInt(BenchmarkResults.option(args, "tasks", "200000"));
+		int payloadSize = Integer.parseInt(BenchmarkResults.option(args, "payload", "64"));
+		BenchmarkResults results = new BenchmarkResults(args);
+
+		ServerConfig config = ServerConfig.parse(BenchmarkResults.otherOptions(args, "tasks", "payload"));
+
+		// warm up
+		run(2, config, tasks / 4, payloadSize, true);
+
+		for(int poolSize:POOL_SIZES){
+			results.record("pool.addTask.threads-" + poolSize, run(poolSize, config, tasks, payloadSize, false), "packets/s", true);
+			results.record("pool.addTasks.threads-" + poolSize, run(poolSize, config, tasks, payloadSize, true), "packets/s", true);
+		}
+		results.finishAndExit();
+	}
+
+}
@@ -1,30 +1,53 @@
 package cs455.scaling.test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import cs455.scaling.pool.*;
+import cs455.scaling.server.Server;
+import cs455.scaling.util.PooledBuffer;
+import cs455.scaling.util.SHA1;
 
 /**
  * 
  * @author Owner Theresa Wellington
  * March 2012
  *
- * A simple class to test classes in the cs.scaling.pool package
+ * A simple class to test classes in the cs.scaling.pool package: hashes a few
+ * packets on the thread pool and checks the responses that come back
  *
  */
 public class PoolTest {
 	
 	private int poolSize;
+	private Server server;
 	private ThreadPoolManager manager;
+	private LoopbackConnection loopback;
 	
 	/**
 	 * Creates a new PoolTest
 	 * @param threadPoolSize - the size of the thread pool
 	 */
-	public PoolTest(int threadPoolSize){
+	public PoolTest(int threadPoolSize) throws IOException{
 		poolSize = threadPoolSize;
-		manager = new ThreadPoolManager(poolSize, null);
+		// the server's pool is started when it's created; nothing is accepted as long as run() isn't called
+		server = new Server(0, poolSize);
+		manager = server.getThreadPool();
+		loopback = new LoopbackConnection(server, true);
+	}
+	
+	/**
+	 * @return a Task whose payload is the id's bytes
+	 */
+	private Task task(String id){
+		byte[] data = id.getBytes();
+		PooledBuffer payload = server.getBufferPool().acquire(data.length);
+		payload.getBuffer().put(data).flip();
+		return new Task(loopback.getConnection(), payload);
 	}
 	
-	public static void main(String args[]){
+	public static void main(String args[]) throws Exception{
 		if(args.length!=1){ 
 			System.out.println("Usage: java cs455.scaling.test.PoolTest thread-pool-size");
 			return;
@@ -36,14 +59,14 @@ public class PoolTest {
 		
 		
 		System.out.println("Starting Pool Test");
-		poolTest.manager.start();
-		Task testTask = new Task("A");
-		Task testTask2 = new Task("B");
-		Task testTask3 = new Task("C");
-		Task testTask4 = new Task("D");
-		Task testTask5 = new Task("E");
-		Task testTask6 = new Task("F");
-		Task testTask7 = new Task("G");
+		String[] ids = {"A", "B", "C", "D", "E", "F", "G"};
+		Task testTask = poolTest.task("A");
+		Task testTask2 = poolTest.task("B");
+		Task testTask3 = poolTest.task("C");
+		Task testTask4 = poolTest.task("D");
+		Task testTask5 = poolTest.task("E");
+		Task testTask6 = poolTest.task("F");
+		Task testTask7 = poolTest.task("G");
 		
 		poolTest.manager.addTask(testTask);
 		poolTest.manager.addTask(testTask2);
@@ -55,10 +78,32 @@ public class PoolTest {
 		
 
 		
-		System.out.println("Stopping Pool Test");
-		poolTest.manager.stop();
-		
+		boolean passed = poolTest.loopback.awaitResponseBytes(ids.length * SHA1.DIGEST_LENGTH, 5000);
+		if(!passed){
+			System.out.println("Timed out waiting for responses");
+		}
+		else{
+			// however the workers shared them out, the responses must come back in the order the packets were sent
+			String[] expected = new String[ids.length];
+			String[] received = new String[ids.length];
+			ByteBuffer responses = ByteBuffer.wrap(poolTest.loopback.getResponses());
+			byte[] hash = new byte[SHA1.DIGEST_LENGTH];
+			for(int i=0; i<ids.length; i++){
+				expected[i] = SHA1.SHA1FromBytes(ids[i].getBytes());
+				responses.get(hash);
+				received[i] = SHA1.toHex(hash);
+			}
+			passed = Arrays.equals(expected, received) && !responses.hasRemaining();
+			System.out.println(passed ? "All " + ids.length + " hashes correct" : "Wrong hashes: " + Arrays.toString(received));
+		}
 		
+		System.out.println("Stopping Pool Test");
+		poolTest.server.shutdown(1000);
+		poolTest.loopback.close();
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed){
+			System.exit(1);
+		}
 		
 	}
 
@@ -0,0 +1,112 @@
+package cs455.scaling.test;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+
+import cs455.scaling.pool.*;
+
+/**
+ * 
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * Contention benchmark for the pool's task queue: compares WorkQueue with the
+ * synchronized LinkedList it replaced at 1, 4, 16 and 64 threads.
+ * Every thread alternates offer and poll, so all threads hit both ends of the queue
+ *
+ */
+public class QueueBenchmark {
+	
+	private static final int[] THREAD_COUNTS = {1, 4, 16, 64};
+	private static final Object ITEM = new Object();
+	
+	/**
+	 * Operations the benchmark runs against a queue
+	 */
+	private interface BenchQueue {
+		boolean offer(Object item);
+		Object poll();
+	}
+	
+	private static BenchQueue workQueue(){
+		final WorkQueue<Object> queue = new WorkQueue<Object>(ThreadPoolManager.DEFAULT_QUEUE_CAPACITY);
+		return new BenchQueue(){
+			public boolean offer(Object item){
+				return queue.offer(item);
+			}
+			public Object poll(){
+				return queue.poll();
+			}
+		};
+	}
+	
+	private static BenchQueue lockedQueue(){
+		final Queue<Object> queue = new LinkedList<Object>();
+		return new BenchQueue(){
+			public synchronized boolean offer(Object item){
+				return queue.offer(item);
+			}
+			public synchronized Object poll(){
+				return queue.poll();
+			}
+		};
+	}
+	
+	/**
+	 * Runs opsPerThread offer/poll pairs on each of threadCount threads
+	 * @return offer/poll pairs per second over all threads
+	 */
+	private static double run(final BenchQueue queue, int threadCount, final int opsPerThread) throws InterruptedException{
+		final CountDownLatch startGate = new CountDownLatch(1);
+		final CountDownLatch endGate = new CountDownLatch(threadCount);
+		
+		for(int i=0; i<threadCount; i++){
+			Thread thread = new Thread(new Runnable(){
+				public void run(){
+					try {
+						startGate.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int op=0; op<opsPerThread; op++){
+						queue.offer(ITEM);
+						queue.poll();
+					}
+					endGate.countDown();
+				}
+			});
+			thread.start();
+		}
+		
+		long start = System.nanoTime();
+		startGate.countDown();
+		endGate.await();
+		long elapsed = System.nanoTime() - start;
+		
+		return (double) threadCount * opsPerThread * 1000000000L / elapsed;
+	}
+	
+	public static void main(String args[]) throws InterruptedException{
+		if(args.length>1){ 
+			System.out.println("Usage: java cs455.scaling.test.QueueBenchmark [ops-per-thread]");
+			return;
+		}
+		int opsPerThread = 1000000;
+		if(args.length==1){
+			opsPerThread = Integer.parseInt(args[0]);
+		}
+		
+		// warm up both implementations before measuring
+		run(workQueue(), 4, opsPerThread / 10);
+		run(lockedQueue(), 4, opsPerThread / 10);
+		
+		System.out.println("threads\tWorkQueue (ops/s)\tsynchronized LinkedList (ops/s)");
+		for(int threads:THREAD_COUNTS){
+			double lockFree = run(workQueue(), threads, opsPerThread);
+			double locked = run(lockedQueue(), threads, opsPerThread);
+			System.out.printf("%d\t%.0f\t\t%.0f%n", threads, lockFree, locked);
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package cs455.scaling.test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cs455.scaling.server.Server;
+import cs455.scaling.server.ServerConfig;
+import cs455.scaling.util.DigestAlgorithm;
+import cs455.scaling.util.Frame;
+import cs455.scaling.util.LatencyHistogram;
+import cs455.scaling.util.RandomData;
+
+/**
+ *
+ * @author Owner Theresa Wellington
+ * March 2012
+ *
+ * Round trip benchmark: a Server in this JVM and a number of connections to it over loopback,
+ * each keeping a window of packets in flight for a fixed time. Reports throughput and the
+ * latency from a packet being sent to its response arriving.
+ * Usage: java cs455.scaling.test.RoundTripBenchmark [threads=N] [connections=N] [window=N] [payload=BYTES]
+ * 		[seconds=N] [digest=sha1|sha256|crc32c] [option=value ...]
+ * 		(other options are passed to the server, see ServerConfig, or BenchmarkResults)
+ *
+ */
+public class RoundTripBenchmark {
+
+	private static AtomicLong responses = new AtomicLong();
+	private static AtomicLong errors = new AtomicLong();
+	private static LatencyHistogram latency = new LatencyHistogram();
+	private static volatile boolean running = true;
+
+	/**
+	 * Send packets on one blocking connection, keeping window of them in flight, until running is cleared
+	 */
+	private static void drive(SocketChannel channel, int window, int payloadSize, DigestAlgorithm algorithm) throws Exception{
+		if(algorithm != DigestAlgorithm.DEFAULT){
+			ByteBuffer handshake = ByteBuffer.allocate(Frame.HEADER_SIZE);
+			Frame.putHandshake(handshake, algorithm);
+			handshake.flip();
+			while(handshake.hasRemaining()){
+				channel.write(handshake);
+			}
+		}
+		ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + payloadSize);
+		frame.putInt(payloadSize);
+		RandomData.fill(frame);
+		ByteBuffer response = ByteBuffer.allocate(algorithm.getLength());
+		// send times of the packets in flight, oldest first (responses come back in order)
+		long[] sent = new long[window];
+		int oldest = 0;
+		int inFlight = 0;
+
+		while(running || inFlight > 0){
+			while(running && inFlight < window){
+				frame.rewind();
+				while(frame.hasRemaining()){
+					channel.write(frame);
+				}
+				sent[(oldest + inFlight) % window] = System.nanoTime();
+				inFlight++;
+			}
+			response.clear();
+			while(response.hasRemaining()){
+				if(channel.read(response) < 0){
+					return;
+				}
+			}
+			latency.record(System.nanoTime() - sent[oldest]);
+			oldest = (oldest + 1) % window;
+			inFlight--;
+			response.flip();
+			if(Frame.isError(response)){
+				errors.incrementAndGet();
+			}
+			responses.incrementAndGet();
+		}
+	}
+
+	public static void main(String args[]) throws Exception{
+		int poolSize = Integer.parseInt(BenchmarkResults.option(args, "threads", "4"));
+		int connections = Integer.parseInt(BenchmarkResults.option(args, "connections", "4"));
+		final int window = Integer.parseInt(BenchmarkResults.option(args, "window", "32"));
+		final int payloadSize = Integer.parseInt(BenchmarkResults.option(args, "payload", "8192"));
+		int seconds = Integer.parseInt(BenchmarkResults.option(args, "seconds", "10"));
+		final DigestAlgorithm algorithm = DigestAlgorithm.fromName(BenchmarkResults.option(args, "digest", "sha1"));
+		BenchmarkResults results = new BenchmarkResults(args);
+
+		ServerConfig config = ServerConfig.parse(BenchmarkResults.otherOptions(args, "threads", "connections", "window", "payload", "seconds", "digest"));
+		Server server = new Server(0, poolSize, config);
+		new Thread(server, "acceptor").start();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLocalHost(), server.getPort());
+
+		Thread[] drivers = new Thread[connections];
+		for(int i=0; i<connections; i++){
+			final SocketChannel channel = SocketChannel.open(address);
+			drivers[i] = new Thread(new Runnable(){
+				public void run(){
+					try {
+						drive(channel, window, payloadSize, algorithm);
+						channel.close();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, "driver-" + i);
+			drivers[i].start();
+		}
+
+		// the first second is warm up
+		Thread.sleep(1000);
+		latency.snapshotAndReset();
+		long startCount = responses.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long count = responses.get() - startCount;
+		long elapsed = System.nanoTime() - start;
+		LatencyHistogram.Snapshot snapshot = latency.snapshotAndReset();
+		running = false;
+		for(Thread driver:drivers){
+			driver.join();
+		}
+		server.shutdown(1000);
+
+		String name = "roundtrip." + payloadSize + "B.threads-" + poolSize;
+		if(algorithm != DigestAlgorithm.DEFAULT){
+			name += "." + algorithm.name().toLowerCase();
+		}
+		results.record(name + ".throughput", (double) count * 1000000000L / elapsed, "packets/s", true);
+		results.record(name + ".p50", snapshot.getValueAtPercentile(50) / 1000.0, "us", false);
+		results.record(name + ".p99", snapshot.getValueAtPercentile(99) / 1000.0, "us", false);
+		results.record(name + ".p999", snapshot.getValueAtPercentile(99.9) / 1000.0, "us", false);
+		if(errors.get() > 0){
+			System.out.println(errors.get() + " packets were rejected by the server");
+		}
+		results.finishAndExit();
+	}
+
+}
@@ -0,0 +1,86 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+
+import cs455.scaling.pool.WorkQueue;
+
+/**
+ * Pool of reusable direct ByteBuffers so packets don't need a fresh allocation each.
+ * Buffers are kept in size classes (powers of two), handed out as reference counted
+ * PooledBuffers and may be acquired and released from any thread.
+ * Free buffers are held in lock-free ring buffers, so neither acquire nor release
+ * allocates once the pool is warm
+ * @author Owner Theresa Wellington
+ *
+ */
+public class BufferPool {
+	
+	private static final int MIN_CLASS_SHIFT = 6;  // smallest class holds 64 bytes
+	private static final int MAX_CLASS_SHIFT = 20; // largest pooled class holds 1MB
+	
+	private final WorkQueue<PooledBuffer>[] freeBuffers;
+	
+	/**
+	 * Creates a new BufferPool
+	 * @param maxBuffersPerClass - most free buffers to keep in each size class
+	 */
+	public BufferPool(int maxBuffersPerClass){
+		int classes = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		@SuppressWarnings("unchecked")
+		WorkQueue<PooledBuffer>[] queues = (WorkQueue<PooledBuffer>[]) new WorkQueue<?>[classes];
+		freeBuffers = queues;
+		for(int i=0; i<classes; i++){
+			freeBuffers[i] = new WorkQueue<PooledBuffer>(maxBuffersPerClass);
+		}
+	}
+	
+	/**
+	 * Get a buffer with room for at least size bytes. The buffer is cleared, its limit set to size
+	 * and the caller holds the only reference to it
+	 * @param size
+	 * @return
+	 */
+	public PooledBuffer acquire(int size){
+		int sizeClass = sizeClass(size);
+		PooledBuffer pooled = null;
+		if(sizeClass < freeBuffers.length){
+			pooled = freeBuffers[sizeClass].poll();
+		}
+		if(pooled == null){
+			pooled = new PooledBuffer(ByteBuffer.allocateDirect(classCapacity(sizeClass, size)), this);
+		}
+		pooled.reset(size);
+		return pooled;
+	}
+	
+	/**
+	 * Called by PooledBuffer once its last holder releases it
+	 * @param pooled
+	 */
+	void recycle(PooledBuffer pooled){
+		int capacity = pooled.getBuffer().capacity();
+		int sizeClass = sizeClass(capacity);
+		// only keep buffers that exactly fill a class we pool;
+		// if the class is already full the buffer is left for the garbage collector
+		if(sizeClass < freeBuffers.length && classCapacity(sizeClass, capacity) == capacity){
+			freeBuffers[sizeClass].offer(pooled);
+		}
+	}
+	
+	private static int sizeClass(int size){
+		if(size <= (1 << MIN_CLASS_SHIFT)){
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift - MIN_CLASS_SHIFT;
+	}
+	
+	private static int classCapacity(int sizeClass, int size){
+		if(sizeClass + MIN_CLASS_SHIFT > MAX_CLASS_SHIFT){
+			// too big to pool, allocate exactly what was asked for
+			return size;
+		}
+		return 1 << (sizeClass + MIN_CLASS_SHIFT);
+	}
+
+}
@@ -0,0 +1,61 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C (Castagnoli) checksum as a 4 byte big-endian Digest. Only an integrity check:
+ * it catches corruption but not deliberate tampering, and is many times cheaper than SHA-1
+ * (the JDK computes it with the CPU's CRC instructions where there are any)
+ * @author Owner Theresa Wellington
+ *
+ */
+public class CRC32CDigest implements Digest {
+	
+	public static final int LENGTH = 4;
+	
+	// each thread reuses its own CRC32C, reset before every checksum
+	private static final ThreadLocal<CRC32C> crcs = new ThreadLocal<CRC32C>(){
+		protected CRC32C initialValue(){
+			return new CRC32C();
+		}
+	};
+	
+	public int getLength(){
+		return LENGTH;
+	}
+	
+	public void digest(ByteBuffer data, ByteBuffer out){
+		out.putInt(checksum(data));
+	}
+	
+	public void digestPooled(ByteBuffer data, ByteBuffer out){
+		// a CRC32C is a few words of state, cheaper to create than to pool
+		out.putInt(checksum(new CRC32C(), data));
+	}
+	
+	public void digest(ByteBuffer data, byte[] out, int offset){
+		int checksum = checksum(data);
+		out[offset] = (byte) (checksum >>> 24);
+		out[offset + 1] = (byte) (checksum >>> 16);
+		out[offset + 2] = (byte) (checksum >>> 8);
+		out[offset + 3] = (byte) checksum;
+	}
+	
+	/**
+	 * @param data - the remaining bytes are checksummed (position is left unchanged)
+	 */
+	static int checksum(ByteBuffer data){
+		CRC32C crc = crcs.get();
+		crc.reset();
+		return checksum(crc, data);
+	}
+	
+	private static int checksum(CRC32C crc, ByteBuffer data){
+		int position = data.position();
+		crc.update(data);
+		data.position(position);
+		return (int) crc.getValue();
+	}
+
+}
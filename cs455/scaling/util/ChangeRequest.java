@@ -7,14 +7,21 @@ import java.nio.channels.SocketChannel;
 public class ChangeRequest {
 	public static final int REGISTER = 1;
 	public static final int CHANGEOPS = 2;
+	public static final int FLUSH = 3;
 	
 	public SocketChannel socket;
 	public int type;
 	public int ops;
+	public Object attachment;
 	
 	public ChangeRequest(SocketChannel socket, int type, int ops) {
 		this.socket = socket;
 		this.type = type;
 		this.ops = ops;
 	}
+	
+	public ChangeRequest(SocketChannel socket, int type, int ops, Object attachment) {
+		this(socket, type, ops);
+		this.attachment = attachment;
+	}
 }
\ No newline at end of file
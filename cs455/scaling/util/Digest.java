@@ -0,0 +1,44 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash function the server can answer packets with. Every digest it produces has the same length,
+ * which is the length of a response on a connection using it (see DigestAlgorithm for the ones available).
+ * Implementations must be safe to call from any number of threads at once
+ * @author Owner Theresa Wellington
+ *
+ */
+public interface Digest {
+	
+	/**
+	 * @return length of a binary digest, in bytes
+	 */
+	public int getLength();
+	
+	/**
+	 * Hash the remaining bytes of data and put the digest into out at out's position
+	 * (data's position is left unchanged, out's advances by getLength())
+	 * @param data
+	 * @param out
+	 */
+	public void digest(ByteBuffer data, ByteBuffer out);
+	
+	/**
+	 * As digest(data, out), for threads that only live to hash one packet (VIRTUAL mode's thread per Task):
+	 * whatever state the hash needs is borrowed from a pool all threads share, rather than set up per thread
+	 * @param data
+	 * @param out
+	 */
+	public void digestPooled(ByteBuffer data, ByteBuffer out);
+	
+	/**
+	 * Hash the remaining bytes of data and write the digest into out starting at offset
+	 * (data's position is left unchanged)
+	 * @param data
+	 * @param out
+	 * @param offset
+	 */
+	public void digest(ByteBuffer data, byte[] out, int offset);
+
+}
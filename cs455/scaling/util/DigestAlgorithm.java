@@ -0,0 +1,76 @@
+package cs455.scaling.util;
+
+/**
+ * The Digests a connection can ask the server to answer its packets with (see Frame.putHandshake).
+ * A connection that doesn't ask is answered with SHA-1
+ * @author Owner Theresa Wellington
+ *
+ */
+public enum DigestAlgorithm {
+	
+	SHA1(1, new MessageDigestFunction("SHA-1", 20), true),
+	
+	SHA256(2, new MessageDigestFunction("SHA-256", 32), true),
+	
+	// integrity check only; its digest is cheaper to compute than the HashCache's fingerprint, so never cached.
+	// A payload whose CRC is 0 is answered with the error response's bytes (see Frame.putError)
+	CRC32C(3, new CRC32CDigest(), false);
+	
+	// answers connections that never sent a handshake
+	public static final DigestAlgorithm DEFAULT = SHA1;
+	
+	// length of the longest digest, e.g. for buffers that must hold any of them
+	public static final int MAX_LENGTH = 32;
+	
+	// identifies the algorithm in a handshake
+	private final int id;
+	private final Digest digest;
+	private final boolean cacheable;
+	
+	private DigestAlgorithm(int id, Digest digest, boolean cacheable){
+		this.id = id;
+		this.digest = digest;
+		this.cacheable = cacheable;
+	}
+	
+	public int getId(){
+		return id;
+	}
+	
+	public Digest getDigest(){
+		return digest;
+	}
+	
+	public int getLength(){
+		return digest.getLength();
+	}
+	
+	/**
+	 * @return true if looking a digest up in the HashCache can be cheaper than computing it
+	 */
+	public boolean isCacheable(){
+		return cacheable;
+	}
+	
+	/**
+	 * @param id - from a handshake
+	 * @return the algorithm, or null if there is none with this id
+	 */
+	public static DigestAlgorithm fromId(int id){
+		for(DigestAlgorithm algorithm:values()){
+			if(algorithm.id == id){
+				return algorithm;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param name - algorithm name as given on the command line, e.g. sha256 or sha-256
+	 * @return
+	 */
+	public static DigestAlgorithm fromName(String name){
+		return valueOf(name.replace("-", "").toUpperCase());
+	}
+
+}
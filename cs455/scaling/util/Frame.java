@@ -0,0 +1,100 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for packets sent from clients to the server:
+ * a 4 byte (big-endian) payload length followed by the payload itself.
+ * The server answers each packet with its digest, or with an error response
+ * (a digest-sized run of zero bytes) if it had to drop the packet. The two can only be told apart by
+ * comparing the response with the digest the client expects: for a 4 byte CRC32C one payload in 2^32
+ * has the error response as its digest.
+ * Before its first packet a connection may send a handshake, a 4 byte header with no payload
+ * naming the DigestAlgorithm its packets are to be answered with (SHA-1 if it sends none).
+ * The server doesn't answer the handshake; if it doesn't know the algorithm it closes the connection
+ * @author Owner Theresa Wellington
+ *
+ */
+public class Frame {
+	
+	public static final int HEADER_SIZE = 4;
+	
+	// largest payload the server will accept (the spec's packets are 8KB)
+	public static final int MAX_PAYLOAD_SIZE = 1024*1024;
+	
+	// a header with these high bits set (a negative length) is a handshake; the low 16 bits are the algorithm's id
+	private static final int HANDSHAKE = 0xD1650000;
+	private static final int HANDSHAKE_MASK = 0xFFFF0000;
+	
+	/**
+	 * Borrows a buffer for a frame from pool and writes the frame header.
+	 * The buffer's position is left at the start of the payload and its limit at the end
+	 * @param pool
+	 * @param payloadSize
+	 * @return
+	 */
+	public static PooledBuffer acquire(BufferPool pool, int payloadSize){
+		PooledBuffer frame = pool.acquire(HEADER_SIZE + payloadSize);
+		frame.getBuffer().putInt(payloadSize);
+		return frame;
+	}
+	
+	/**
+	 * Write a handshake asking for packets to be answered with algorithm's digests
+	 * @param out - must have HEADER_SIZE bytes remaining
+	 * @param algorithm
+	 */
+	public static void putHandshake(ByteBuffer out, DigestAlgorithm algorithm){
+		out.putInt(HANDSHAKE | algorithm.getId());
+	}
+	
+	/**
+	 * @param header - a frame header read from a connection
+	 * @return true if the header is a handshake rather than a payload length
+	 */
+	public static boolean isHandshake(int header){
+		return (header & HANDSHAKE_MASK) == HANDSHAKE;
+	}
+	
+	/**
+	 * @param header - a handshake (see isHandshake)
+	 * @return the algorithm it asks for, or null if there is none with its id
+	 */
+	public static DigestAlgorithm handshakeAlgorithm(int header){
+		return DigestAlgorithm.fromId(header & ~HANDSHAKE_MASK);
+	}
+	
+	/**
+	 * Write an error response into out
+	 * @param out - must have length bytes remaining
+	 * @param length - length of the connection's digests
+	 */
+	public static void putError(ByteBuffer out, int length){
+		for(int i=0; i<length; i++){
+			out.put((byte) 0);
+		}
+	}
+	
+	/**
+	 * @param response - a response from the server (position is left unchanged)
+	 * @return true if the response is an error response, or a digest that happens to be all zeros
+	 * 			(check for the expected digest first)
+	 */
+	public static boolean isError(ByteBuffer response){
+		for(int i=response.position(); i<response.limit(); i++){
+			if(response.get(i) != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param length - payload length read from a frame header
+	 * @return true if a frame of this length may be accepted
+	 */
+	public static boolean isValidLength(int length){
+		return length > 0 && length <= MAX_PAYLOAD_SIZE;
+	}
+
+}
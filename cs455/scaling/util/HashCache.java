@@ -0,0 +1,179 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of digests for payloads that are sent more than once (retries, heartbeats).
+ * A payload is looked up by a fingerprint (its CRC32C, length and digest algorithm) and a hit is only taken after
+ * comparing the whole payload and algorithm with the cached ones, so a fingerprint collision can't return a wrong digest.
+ * The cache is split into segments, each an LRU list with its own share of the memory cap and its own
+ * lock. A payload is only cached the second time its fingerprint is seen, so payloads that never
+ * repeat don't push out ones that do or cost a copy each
+ * @author Owner Theresa Wellington
+ *
+ */
+public class HashCache {
+
+	private static final int SEGMENTS = 16;
+	// fingerprints remembered per segment for admission (a power of two)
+	private static final int DOORKEEPER_SIZE = 1024;
+	// rough per-entry cost of the map entry, key and arrays beyond the payload and digest bytes
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final Segment[] segments;
+
+	/**
+	 * A cached payload and its digest
+	 */
+	private static class Entry {
+		final DigestAlgorithm algorithm;
+		final byte[] payload;
+		final byte[] digest;
+
+		Entry(DigestAlgorithm algorithm, byte[] payload, byte[] digest){
+			this.algorithm = algorithm;
+			this.payload = payload;
+			this.digest = digest;
+		}
+
+		long size(){
+			return payload.length + digest.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * One lock's worth of the cache: an access-ordered map, least recently used first
+	 */
+	private static class Segment {
+		final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+		// fingerprints seen once, by fingerprint modulo the array's length
+		final long[] doorkeeper = new long[DOORKEEPER_SIZE];
+		final long capacity;
+		long size = 0;
+
+		Segment(long capacity){
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * @param capacityBytes - most memory (payload copies, digests and bookkeeping) the cache may hold
+	 */
+	public HashCache(long capacityBytes){
+		segments = new Segment[SEGMENTS];
+		for(int i=0; i<SEGMENTS; i++){
+			segments[i] = new Segment(capacityBytes / SEGMENTS);
+		}
+	}
+
+	/**
+	 * @param payload - from its position to its limit, which are left unchanged
+	 * @param algorithm - what the payload is to be hashed with
+	 * @return the payload's fingerprint, to pass to get and put
+	 */
+	public static long fingerprint(ByteBuffer payload, DigestAlgorithm algorithm){
+		long crc = CRC32CDigest.checksum(payload) & 0xFFFFFFFFL;
+		// spread the algorithm over the CRC's bits, so one payload's digests land in different segments
+		return ((crc ^ algorithm.getId() * 0x9E3779B9L) << 32) | payload.remaining();
+	}
+
+	/**
+	 * Look up a payload's digest
+	 * @param fingerprint - from fingerprint(payload, algorithm)
+	 * @param algorithm
+	 * @param payload - from its position to its limit, which are left unchanged
+	 * @param out - receives the digest if it is cached
+	 * @return true on a hit
+	 */
+	public boolean get(long fingerprint, DigestAlgorithm algorithm, ByteBuffer payload, ByteBuffer out){
+		Segment segment = segment(fingerprint);
+		Entry entry;
+		synchronized(segment){
+			entry = segment.entries.get(fingerprint);
+		}
+		// entries are never changed once cached, so they can be compared outside the lock
+		if(entry == null || entry.algorithm != algorithm || !payload.equals(ByteBuffer.wrap(entry.payload))){
+			return false;
+		}
+		out.put(entry.digest);
+		return true;
+	}
+
+	/**
+	 * Cache a payload's digest, if its fingerprint has been seen before; the least recently used
+	 * payloads are dropped to make room
+	 * @param fingerprint - from fingerprint(payload, algorithm)
+	 * @param algorithm - what digest was computed with
+	 * @param payload - from its position to its limit, which are left unchanged
+	 * @param digest - from its position to its limit, which are left unchanged
+	 */
+	public void put(long fingerprint, DigestAlgorithm algorithm, ByteBuffer payload, ByteBuffer digest){
+		Segment segment = segment(fingerprint);
+		int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & (DOORKEEPER_SIZE - 1);
+		synchronized(segment){
+			if(segment.doorkeeper[slot] != fingerprint){
+				// first sighting (as far as we remember): only note it
+				segment.doorkeeper[slot] = fingerprint;
+				return;
+			}
+			if(payload.remaining() + digest.remaining() + ENTRY_OVERHEAD > segment.capacity){
+				return;
+			}
+		}
+		// copy outside the lock
+		byte[] payloadCopy = new byte[payload.remaining()];
+		payload.duplicate().get(payloadCopy);
+		byte[] digestCopy = new byte[digest.remaining()];
+		digest.duplicate().get(digestCopy);
+		Entry entry = new Entry(algorithm, payloadCopy, digestCopy);
+
+		synchronized(segment){
+			Entry replaced = segment.entries.put(fingerprint, entry);
+			if(replaced != null){
+				// a colliding payload, or one cached by another worker at the same time
+				segment.size -= replaced.size();
+			}
+			segment.size += entry.size();
+			Iterator<Map.Entry<Long, Entry>> oldest = segment.entries.entrySet().iterator();
+			while(segment.size > segment.capacity && oldest.hasNext()){
+				segment.size -= oldest.next().getValue().size();
+				oldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of cached payloads
+	 */
+	public int size(){
+		int size = 0;
+		for(Segment segment:segments){
+			synchronized(segment){
+				size += segment.entries.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return approximate memory held by the cache, in bytes
+	 */
+	public long getBytes(){
+		long bytes = 0;
+		for(Segment segment:segments){
+			synchronized(segment){
+				bytes += segment.size;
+			}
+		}
+		return bytes;
+	}
+
+	private Segment segment(long fingerprint){
+		// the CRC's low bits
+		return segments[(int) (fingerprint >>> 32) & (SEGMENTS - 1)];
+	}
+
+}
@@ -0,0 +1,140 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, with HDR-style log-linear buckets: values are
+ * grouped by power of two and every power of two is split into SUB_BUCKETS equal buckets, so a
+ * recorded value is off by at most 1/SUB_BUCKETS (about 3%). Values past 2^MAX_EXPONENT ns
+ * (about 18 minutes) count in the last bucket.
+ * Counts are striped over several arrays by recording thread so workers don't fight over the same cache lines
+ * @author Owner Theresa Wellington
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private AtomicLongArray[] stripes;
+
+	public LatencyHistogram(){
+		int count = Integer.highestOneBit(Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+		stripes = new AtomicLongArray[count];
+		for(int i=0; i<count; i++){
+			stripes[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/**
+	 * @param nanos - a latency; negative values count as 0
+	 */
+	public void record(long nanos){
+		AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+		stripe.incrementAndGet(bucket(nanos));
+	}
+
+	/**
+	 * Take the counts recorded since the last call
+	 * @return
+	 */
+	public Snapshot snapshotAndReset(){
+		long[] counts = new long[BUCKETS];
+		for(AtomicLongArray stripe:stripes){
+			for(int i=0; i<BUCKETS; i++){
+				if(stripe.get(i) != 0){
+					counts[i] += stripe.getAndSet(i, 0);
+				}
+			}
+		}
+		return new Snapshot(counts);
+	}
+
+	static int bucket(long value){
+		if(value < SUB_BUCKETS){
+			return (int) Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent >= MAX_EXPONENT){
+			return BUCKETS - 1;
+		}
+		// the SUB_BITS bits after the leading one pick the bucket within the power of two
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long highestValue(int bucket){
+		int group = bucket / SUB_BUCKETS;
+		int sub = bucket % SUB_BUCKETS;
+		if(group == 0){
+			return sub;
+		}
+		int exponent = group + SUB_BITS - 1;
+		return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Counts taken from a LatencyHistogram at one point in time
+	 */
+	public static class Snapshot {
+
+		private long[] counts;
+		private long total;
+
+		Snapshot(long[] counts){
+			this.counts = counts;
+			for(long count:counts){
+				total += count;
+			}
+		}
+
+		public long getCount(){
+			return total;
+		}
+
+		/**
+		 * @param percentile - 0 to 100, e.g. 99.9
+		 * @return the latency (ns) that percentile of the recorded values are at or below, 0 if none were recorded
+		 */
+		public long getValueAtPercentile(double percentile){
+			if(total == 0){
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for(int i=0; i<counts.length; i++){
+				seen += counts[i];
+				if(seen >= rank){
+					return highestValue(i);
+				}
+			}
+			return highestValue(counts.length - 1);
+		}
+
+		public long getMax(){
+			return getValueAtPercentile(100);
+		}
+
+		/**
+		 * @return count, p50, p90, p99, p999 and max, in microseconds
+		 */
+		public String toString(){
+			return "count=" + total +
+					" p50=" + micros(getValueAtPercentile(50)) +
+					" p90=" + micros(getValueAtPercentile(90)) +
+					" p99=" + micros(getValueAtPercentile(99)) +
+					" p999=" + micros(getValueAtPercentile(99.9)) +
+					" max=" + micros(getMax()) + " (us)";
+		}
+
+		private static long micros(long nanos){
+			return nanos / 1000;
+		}
+	}
+
+}
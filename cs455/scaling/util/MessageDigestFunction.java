@@ -0,0 +1,97 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import cs455.scaling.pool.WorkQueue;
+
+/**
+ * A Digest computed by one of the platform's MessageDigest algorithms (SHA-1, SHA-256).
+ * Each thread keeps its own MessageDigest, so hashing doesn't look up the provider
+ * or allocate on every call; threads that hash only once borrow one from a shared pool instead
+ * @author Owner Theresa Wellington
+ *
+ */
+public class MessageDigestFunction implements Digest {
+	
+	private final String algorithm;
+	private final int length;
+	
+	// most MessageDigests kept for digestPooled; about as many as threads hashing at once
+	private static final int POOL_SIZE = 64;
+	
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>(){
+		protected MessageDigest initialValue(){
+			return newDigest();
+		}
+	};
+	
+	// idle MessageDigests for digestPooled
+	private final WorkQueue<MessageDigest> pool = new WorkQueue<MessageDigest>(POOL_SIZE);
+	
+	// scratch space for digests written into a ByteBuffer
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>(){
+		protected byte[] initialValue(){
+			return new byte[length];
+		}
+	};
+	
+	/**
+	 * @param algorithm - MessageDigest algorithm name, e.g. SHA-256
+	 * @param length - length of the algorithm's digests, in bytes
+	 */
+	public MessageDigestFunction(String algorithm, int length){
+		this.algorithm = algorithm;
+		this.length = length;
+	}
+	
+	public int getLength(){
+		return length;
+	}
+	
+	public void digest(ByteBuffer data, ByteBuffer out){
+		byte[] bytes = scratch.get();
+		digest(data, bytes, 0);
+		out.put(bytes);
+	}
+	
+	public void digest(ByteBuffer data, byte[] out, int offset){
+		digest(digests.get(), data, out, offset);
+	}
+	
+	public void digestPooled(ByteBuffer data, ByteBuffer out){
+		MessageDigest digest = pool.poll();
+		if(digest == null){
+			digest = newDigest();
+		}
+		// a new thread has no scratch array either, so this allocates one
+		byte[] bytes = new byte[length];
+		digest(digest, data, bytes, 0);
+		out.put(bytes);
+		// dropped if the pool is full
+		pool.offer(digest);
+	}
+	
+	private void digest(MessageDigest digest, ByteBuffer data, byte[] out, int offset){
+		int position = data.position();
+		digest.update(data);
+		data.position(position);
+		try {
+			digest.digest(out, offset, length);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException("No room for digest in output array", e);
+		}
+	}
+	
+	private MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to provide SHA-1 and SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A direct ByteBuffer borrowed from a BufferPool. The buffer is reference counted:
+ * every holder that calls retain() must call release(), and the buffer goes back
+ * to its pool when the last holder releases it
+ * @author Owner Theresa Wellington
+ *
+ */
+public class PooledBuffer {
+	
+	private final ByteBuffer buffer;
+	private final BufferPool pool;
+	private final AtomicInteger refCount = new AtomicInteger();
+	// System.nanoTime() of the holder's choosing, e.g. when a response was queued (for latency stats)
+	private long timestamp;
+	// sequence number of the packet a response answers, -1 if none (see Connection.enqueue)
+	private long sequence = -1;
+	
+	PooledBuffer(ByteBuffer buffer, BufferPool pool){
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+	
+	public ByteBuffer getBuffer(){
+		return buffer;
+	}
+	
+	public long getTimestamp(){
+		return timestamp;
+	}
+	
+	public void setTimestamp(long nanos){
+		timestamp = nanos;
+	}
+	
+	public long getSequence(){
+		return sequence;
+	}
+	
+	public void setSequence(long sequence){
+		this.sequence = sequence;
+	}
+	
+	/**
+	 * Add a holder of this buffer
+	 * @return this buffer
+	 */
+	public PooledBuffer retain(){
+		if(refCount.getAndIncrement() <= 0){
+			throw new IllegalStateException("Buffer retained after it was released");
+		}
+		return this;
+	}
+	
+	/**
+	 * Drop a holder of this buffer, returning it to the pool if it was the last one
+	 */
+	public void release(){
+		int count = refCount.decrementAndGet();
+		if(count == 0){
+			pool.recycle(this);
+		}
+		else if(count < 0){
+			throw new IllegalStateException("Buffer released more times than it was retained");
+		}
+	}
+	
+	/**
+	 * Called by the pool when the buffer is handed out
+	 */
+	void reset(int size){
+		refCount.set(1);
+		sequence = -1;
+		buffer.clear();
+		buffer.limit(size);
+	}
+
+}
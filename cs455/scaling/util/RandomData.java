@@ -1,6 +1,8 @@
 package cs455.scaling.util;
 
+import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Generates a random byte array
@@ -15,5 +17,19 @@ public class RandomData {
 		generator.nextBytes(randomData);
 		return randomData;
 	}
+	
+	/**
+	 * Fills the remaining bytes of buffer with random data (without allocating)
+	 * @param buffer
+	 */
+	public static void fill(ByteBuffer buffer){
+		ThreadLocalRandom generator = ThreadLocalRandom.current();
+		while(buffer.remaining() >= 8){
+			buffer.putLong(generator.nextLong());
+		}
+		while(buffer.hasRemaining()){
+			buffer.put((byte) generator.nextInt());
+		}
+	}
 
 }
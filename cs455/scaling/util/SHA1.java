@@ -1,26 +1,73 @@
 package cs455.scaling.util;
 
-import java.math.BigInteger;
-import java.security.*;
+import java.nio.ByteBuffer;
 
 /**
  * creates a hash of the byte[] passed in
+ * Shorthand for DigestAlgorithm.SHA1, the algorithm used when a connection doesn't ask for another.
+ * Hashes are 20 byte binary digests; toHex (for any algorithm's digests) is only for display
  * @author Owner Theresa Wellington
  *
  */
 public class SHA1 {
+	
+	// length of a binary SHA-1 digest
+	public static final int DIGEST_LENGTH = 20;
+	
+	// length of a digest formatted by toHex
+	public static final int HEX_LENGTH = 2 * DIGEST_LENGTH;
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	private static final Digest DIGEST = DigestAlgorithm.SHA1.getDigest();
 
 	public static String SHA1FromBytes(byte[] data){
-		MessageDigest digest = null;
-		try {
-			digest = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		byte[] hash = new byte[DIGEST_LENGTH];
+		DIGEST.digest(ByteBuffer.wrap(data), hash, 0);
+		return toHex(hash);
+	}
+	
+	/**
+	 * Hash the remaining bytes of data and put the digest into out at out's position
+	 * (data's position is left unchanged, out's advances by DIGEST_LENGTH)
+	 * @param data
+	 * @param out
+	 */
+	public static void digest(ByteBuffer data, ByteBuffer out){
+		DIGEST.digest(data, out);
+	}
+	
+	/**
+	 * Hash the remaining bytes of data and write the digest into out starting at offset
+	 * (data's position is left unchanged)
+	 * @param data
+	 * @param out
+	 * @param offset
+	 */
+	public static void digest(ByteBuffer data, byte[] out, int offset){
+		DIGEST.digest(data, out, offset);
+	}
+	
+	/**
+	 * Format a digest as a fixed length hex string (leading zeros are kept)
+	 * @param hash
+	 * @return
+	 */
+	public static String toHex(byte[] hash){
+		return toHex(hash, hash.length);
+	}
+	
+	/**
+	 * @param hash
+	 * @param length - number of leading bytes of hash to format
+	 * @return
+	 */
+	public static String toHex(byte[] hash, int length){
+		char[] hex = new char[2 * length];
+		for(int i=0; i<length; i++){
+			hex[2*i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[2*i + 1] = HEX_DIGITS[hash[i] & 0xf];
 		}
-		byte[] hash = digest.digest(data);
-		BigInteger hashInt = new BigInteger(1, hash);
-		
-		return hashInt.toString(16);
+		return new String(hex);
 	}
 }